@@ -0,0 +1,38 @@
+package ch.gpitteloud.tree;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A parent-child resolver whose children are fetched asynchronously, typically from a remote service. The blocking
+ * {@link #getChildren(Object)} method waits for the asynchronous fetch, so that such a resolver can be used wherever
+ * a {@link ParentChildResolver} is expected; {@link AsyncTreeIterator} keeps many fetches in flight instead.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N>
+ *            The node type
+ */
+public interface AsyncParentChildResolver<N> extends ParentChildResolver<N> {
+
+    /**
+     * Start fetching the children of the node. The returned future may be cancelled when the children are not needed
+     * any more; implementations may then abort the fetch.
+     *
+     * @param node
+     *            a node, not null
+     * @return a future completed with the children of that node, never null
+     */
+    CompletableFuture<List<N>> getChildrenAsync(N node);
+
+    /**
+     * Return the children of the node, waiting for the completion of {@link #getChildrenAsync(Object)}
+     *
+     * @param node
+     *            a node, not null
+     * @return the children of that node, never null
+     */
+    @Override
+    default List<N> getChildren(N node) {
+        return DefaultTreeIterator.join(getChildrenAsync(node));
+    }
+}
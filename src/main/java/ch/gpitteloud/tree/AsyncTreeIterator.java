@@ -0,0 +1,29 @@
+package ch.gpitteloud.tree;
+
+/**
+ * A tree iterator over a tree whose children are fetched asynchronously. The iterator starts fetching the children of
+ * the next nodes waiting to be traversed, so that many fetches are in flight while the current node is processed: at
+ * most maxInFlight of the returned futures are not completed at any time. The order of the traversal is the same as
+ * with a {@link DefaultTreeIterator}: the children of a node are only waited for when the node is returned by
+ * {@link #next()}.
+ * <p>
+ * The fetches of the children of skipped or removed nodes are cancelled, which leaves room for the fetches of the next
+ * nodes.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N> the node type
+ */
+public class AsyncTreeIterator<N> extends DefaultTreeIterator<N> {
+
+    /**
+     * @param mode exploration mode
+     * @param first the first element of the tree (root).
+     * @param resolver The asynchronous resolver of parent-child relationships for the node
+     * @param maxInFlight the maximal number of children fetches in flight, at least 1
+     */
+    public AsyncTreeIterator(ExplorationMode mode, N first, AsyncParentChildResolver<N> resolver, int maxInFlight) {
+        super(mode, first, resolver);
+        assert maxInFlight > 0 : "Invalid maxInFlight " + maxInFlight;
+        setChildrenFetcher(resolver::getChildrenAsync, maxInFlight);
+    }
+}
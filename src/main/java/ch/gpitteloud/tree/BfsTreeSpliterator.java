@@ -0,0 +1,275 @@
+package ch.gpitteloud.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator that explores a tree in BFS mode, level by level. The nodes of a level are the children of the nodes of
+ * the previous level, and the next level is built once all the nodes of a level are consumed.
+ * <p>
+ * The split operation divides the unhandled nodes of the current level: the first half is handed over to a forked
+ * spliterator that only traverses these nodes (not their children), and this spliterator keeps the second half and
+ * all the lower levels. The forked spliterator thus always covers a prefix of the BFS order. If the current level is
+ * exhausted, the next level is split before its nodes are resolved: the nodes of the current level are divided, and
+ * each half of the next level is resolved by the spliterator that traverses it, so that the resolution of each level
+ * is shared between workers. A part of a level is resolved once, when it is traversed or when the lower levels are
+ * built, whichever comes first.
+ * <p>
+ * The spliterator's characteristics are ORDERED, NONNULL, DISTINCT, plus SIZED when the resolver reports exact subtree
+ * sizes (see {@link SubtreeSizeResolver}). Forked spliterators whose nodes were already resolved are SIZED and
+ * SUBSIZED; the size of the other forked spliterators is an estimate.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <T> The node type
+ */
+public class BfsTreeSpliterator<T> implements Spliterator<T> {
+
+    private static final long UNKNOWN_SIZE = Long.MAX_VALUE;
+
+    private final ChildResolver<T> resolver;
+    // false for a forked spliterator, that only traverses a part of a level
+    private final boolean exploreLowerLevels;
+    private final int sizeCharacteristics;
+    // the whole current level, null for a forked spliterator
+    private Chunk<T> level;
+    // the part of the level handled by this spliterator, until it is resolved
+    private Chunk<T> chunk;
+    // the resolved nodes: the next node to consume is at cursor, the last one before end
+    private List<T> nodes;
+    private int cursor;
+    private int end;
+    // number of nodes not yet consumed, lower levels included
+    private long size;
+
+    public BfsTreeSpliterator(T root, ChildResolver<T> resolver) {
+        assert resolver != null : "Invalid null resolver";
+        this.resolver = resolver;
+        this.exploreLowerLevels = true;
+        SubtreeSizeResolver<T> sizeResolver = resolver instanceof SubtreeSizeResolver
+                ? (SubtreeSizeResolver<T>) resolver : null;
+        // the parts of the levels that are forked before they are resolved have unknown sizes: not SUBSIZED
+        this.sizeCharacteristics = sizeResolver != null && sizeResolver.isSubtreeSizeExact() ? SIZED : 0;
+        this.nodes = root == null ? Collections.<T>emptyList() : Collections.singletonList(root);
+        this.level = new Chunk<>(nodes);
+        this.end = nodes.size();
+        if (root == null) {
+            size = 0;
+        } else {
+            size = sizeResolver == null ? UNKNOWN_SIZE : sizeResolver.getSubtreeSize(root);
+        }
+    }
+
+    /**
+     * Spliterator over resolved nodes of a level
+     */
+    private BfsTreeSpliterator(ChildResolver<T> resolver, List<T> nodes, int from, int to) {
+        this.resolver = resolver;
+        this.exploreLowerLevels = false;
+        this.sizeCharacteristics = SIZED | SUBSIZED;
+        this.nodes = nodes;
+        this.cursor = from;
+        this.end = to;
+        this.size = to - from;
+    }
+
+    /**
+     * Spliterator over a part of a level that is not resolved yet
+     */
+    private BfsTreeSpliterator(ChildResolver<T> resolver, Chunk<T> chunk) {
+        this.resolver = resolver;
+        this.exploreLowerLevels = false;
+        this.sizeCharacteristics = 0;
+        this.chunk = chunk;
+        // at least one node per parent is a rough estimate
+        this.size = chunk.getParentCount();
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (hasNextNode()) {
+            action.accept(nodes.get(cursor++));
+            consumed(1);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        while (hasNextNode()) {
+            int count = end - cursor;
+            for (int i = cursor; i < end; i++) {
+                action.accept(nodes.get(i));
+            }
+            cursor = end;
+            consumed(count);
+        }
+    }
+
+    /**
+     * Answer whether a node remains to be consumed in the current level, moving to the next level if needed
+     */
+    private boolean hasNextNode() {
+        if (nodes != null && cursor == end && exploreLowerLevels) {
+            moveToNextLevel();
+        }
+        if (nodes == null) {
+            resolveChunk();
+        }
+        return cursor < end;
+    }
+
+    /**
+     * The next level is made of the children of all the nodes of the current level, including the nodes that were
+     * handed over to forked spliterators. It is not resolved yet.
+     */
+    private void moveToNextLevel() {
+        List<T> parents = level.getChildren(resolver);
+        level = new Chunk<>(parents, 0, parents.size());
+        chunk = level;
+        nodes = null;
+    }
+
+    private void resolveChunk() {
+        nodes = chunk.getChildren(resolver);
+        chunk = null;
+        cursor = 0;
+        end = nodes.size();
+        if (sizeCharacteristics == 0 && !exploreLowerLevels) {
+            // the estimate is now exact
+            size = end;
+        }
+    }
+
+    private void consumed(long count) {
+        if (size != UNKNOWN_SIZE) {
+            size = Math.max(0, size - count);
+        }
+    }
+
+    /**
+     * The first half of the unhandled nodes of the current level are handled by the forked spliterator, the second
+     * half and the lower levels are handled by this spliterator. A part of a level that is not resolved yet is split
+     * before it is resolved.
+     *
+     * @return forked spliterator, or null if the nodes are exhausted
+     */
+    @Override
+    public Spliterator<T> trySplit() {
+        if (nodes != null && cursor == end && exploreLowerLevels) {
+            moveToNextLevel();
+        }
+        if (nodes == null && chunk.split()) {
+            BfsTreeSpliterator<T> forked = new BfsTreeSpliterator<>(resolver, chunk.getFirst());
+            chunk = chunk.getSecond();
+            consumed(forked.size);
+            return forked;
+        }
+        if (!hasNextNode()) {
+            return null;
+        }
+        int unhandled = end - cursor;
+        int forkedCount;
+        if (unhandled > 1) {
+            forkedCount = unhandled >>> 1;
+        } else if (exploreLowerLevels) {
+            // hand over the last node of the level, lower levels remain in this spliterator
+            forkedCount = 1;
+        } else {
+            return null;
+        }
+        BfsTreeSpliterator<T> forked = new BfsTreeSpliterator<>(resolver, nodes, cursor, cursor + forkedCount);
+        cursor += forkedCount;
+        consumed(forkedCount);
+        return forked;
+    }
+
+    @Override
+    public long estimateSize() {
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        return DISTINCT | NONNULL | ORDERED | sizeCharacteristics;
+    }
+
+    /**
+     * The children of a range of the nodes of the previous level, resolved once, by the first spliterator that needs
+     * them. A chunk that is not resolved yet may be split in two chunks, that are resolved independently; the children
+     * of the split chunk are then the children of both.
+     */
+    private static final class Chunk<T> {
+        private final List<T> parents;
+        private final int from;
+        private final int to;
+        // null until resolved
+        private List<T> children;
+        // not null once split
+        private Chunk<T> first;
+        private Chunk<T> second;
+
+        /**
+         * A resolved chunk
+         */
+        Chunk(List<T> children) {
+            this(null, 0, 0);
+            this.children = children;
+        }
+
+        Chunk(List<T> parents, int from, int to) {
+            this.parents = parents;
+            this.from = from;
+            this.to = to;
+        }
+
+        int getParentCount() {
+            return to - from;
+        }
+
+        /**
+         * Split this chunk in two chunks of parents, if it is not resolved yet and has many parents
+         *
+         * @return true if this chunk was split
+         */
+        synchronized boolean split() {
+            if (children != null || first != null || to - from < 2) {
+                return false;
+            }
+            int mid = (from + to) >>> 1;
+            first = new Chunk<>(parents, from, mid);
+            second = new Chunk<>(parents, mid, to);
+            return true;
+        }
+
+        Chunk<T> getFirst() {
+            return first;
+        }
+
+        Chunk<T> getSecond() {
+            return second;
+        }
+
+        synchronized List<T> getChildren(ChildResolver<T> resolver) {
+            if (children == null) {
+                List<T> resolved;
+                if (first != null) {
+                    // the halves may be resolved concurrently by the spliterators they were handed over to
+                    resolved = new ArrayList<>(first.getChildren(resolver));
+                    resolved.addAll(second.getChildren(resolver));
+                } else {
+                    resolved = new ArrayList<>();
+                    for (int i = from; i < to; i++) {
+                        resolved.addAll(resolver.getChildren(parents.get(i)));
+                    }
+                }
+                children = resolved;
+            }
+            return children;
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+package ch.gpitteloud.tree;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A decorator of a {@link ParentChildResolver} that caches the children and the parents resolved by the delegate, for
+ * expensive resolvers whose results are asked many times for the same nodes (siblings lookups of the spliterators,
+ * last child checks of {@link NodePrinter}, depth walks).
+ * <p>
+ * Both caches are bounded and evict the least recently used entries. The cached values may be held by soft references,
+ * so that they are reclaimed under memory pressure. Nodes are compared with their equals method.
+ * <p>
+ * This resolver is thread-safe when the delegate is, so that it may be shared by the threads of a parallel stream.
+ * Concurrent misses on the same node may resolve it more than once. Large caches are split into segments guarded by
+ * their own lock, selected by the hash code of the node, so that the threads of a parallel traversal seldom wait for
+ * each other; the least recently used entry is then evicted per segment, not across the whole cache. Caches of less
+ * than {@value #MIN_SEGMENT_ENTRIES} entries per segment are not split, and keep an exact least recently used order.
+ * <p>
+ * The resolver is read-only: the cached children lists are unmodifiable copies, and modifying them (e.g. with
+ * {@link DefaultTreeIterator#remove()}, or as the target resolver of a {@link TreeTransformer}) throws an
+ * {@link UnsupportedOperationException}. When the tree is modified through the delegate or the nodes, the cache must be
+ * {@link #invalidate(Object) invalidated}.
+ * <p>
+ * Use {@link #of(ParentChildResolver, int, boolean)} to keep the subtree sizes of a delegate that is a
+ * {@link SubtreeSizeResolver}: the sizes are forwarded to the delegate, so that the spliterators still report their
+ * size and split at size-balanced points.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N>
+ *            The node type
+ */
+public class CachingParentChildResolver<N> implements ParentChildResolver<N> {
+
+    /** the cached value of a root's parent */
+    private static final Object NO_PARENT = new Object();
+
+    /** the minimal number of entries of a segment of a split cache */
+    static final int MIN_SEGMENT_ENTRIES = 64;
+
+    /** the maximal number of segments of a cache */
+    private static final int MAX_SEGMENTS = 16;
+
+    private final ParentChildResolver<N> delegate;
+    private final LruCache<N, List<N>> childrenCache;
+    private final LruCache<N, Object> parentCache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Create a caching resolver holding its values by strong references.
+     *
+     * @param delegate
+     *            the resolver whose results are cached
+     * @param maxEntries
+     *            the maximal number of cached children lists, and of cached parents
+     */
+    public CachingParentChildResolver(ParentChildResolver<N> delegate, int maxEntries) {
+        this(delegate, maxEntries, false);
+    }
+
+    /**
+     * Create a caching resolver.
+     *
+     * @param delegate
+     *            the resolver whose results are cached
+     * @param maxEntries
+     *            the maximal number of cached children lists, and of cached parents
+     * @param softValues
+     *            true to hold the cached values by soft references
+     */
+    public CachingParentChildResolver(ParentChildResolver<N> delegate, int maxEntries, boolean softValues) {
+        assert delegate != null : "Invalid null delegate";
+        assert maxEntries > 0 : "Invalid maxEntries " + maxEntries;
+        this.delegate = delegate;
+        this.childrenCache = new LruCache<>(maxEntries, softValues);
+        this.parentCache = new LruCache<>(maxEntries, softValues);
+    }
+
+    /**
+     * Create a caching resolver, which is a {@link SubtreeSizeResolver} forwarding the subtree sizes to the delegate
+     * when the delegate is one.
+     *
+     * @param delegate
+     *            the resolver whose results are cached
+     * @param maxEntries
+     *            the maximal number of cached children lists, and of cached parents
+     * @param softValues
+     *            true to hold the cached values by soft references
+     * @param <N>
+     *            The node type
+     * @return a new caching resolver
+     */
+    public static <N> CachingParentChildResolver<N> of(ParentChildResolver<N> delegate, int maxEntries,
+            boolean softValues) {
+        if (delegate instanceof SubtreeSizeResolver) {
+            return new Sized<>((SubtreeSizeResolver<N>) delegate, maxEntries, softValues);
+        }
+        return new CachingParentChildResolver<>(delegate, maxEntries, softValues);
+    }
+
+    @Override
+    public List<N> getChildren(N node) {
+        return childrenCache.get(node, n -> Collections.unmodifiableList(new ArrayList<>(delegate.getChildren(n))));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public N getParent(N node) {
+        Object parent = parentCache.get(node, n -> {
+            N p = delegate.getParent(n);
+            return p == null ? NO_PARENT : p;
+        });
+        return parent == NO_PARENT ? null : (N) parent;
+    }
+
+    /**
+     * Remove the cached children and parent of a node, after a modification of the tree.
+     *
+     * @param node
+     *            a node, not null
+     */
+    public void invalidate(N node) {
+        childrenCache.remove(node);
+        parentCache.remove(node);
+    }
+
+    /**
+     * Remove all the cached values. The counters are not reset.
+     */
+    public void invalidateAll() {
+        childrenCache.clear();
+        parentCache.clear();
+    }
+
+    /**
+     * @return the resolver whose results are cached
+     */
+    public ParentChildResolver<N> getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return the number of children and parent lookups answered from the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of children and parent lookups forwarded to the delegate
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * A caching resolver whose delegate tells the subtree sizes. The sizes are not cached: the delegate is expected to
+     * answer them cheaply, as {@link TreeNode.Resolver} and {@link CompactTree#getResolver()} do.
+     */
+    private static final class Sized<N> extends CachingParentChildResolver<N> implements SubtreeSizeResolver<N> {
+
+        private final SubtreeSizeResolver<N> sizeDelegate;
+
+        Sized(SubtreeSizeResolver<N> delegate, int maxEntries, boolean softValues) {
+            super(delegate, maxEntries, softValues);
+            this.sizeDelegate = delegate;
+        }
+
+        @Override
+        public long getSubtreeSize(N node) {
+            return sizeDelegate.getSubtreeSize(node);
+        }
+
+        @Override
+        public boolean isSubtreeSizeExact() {
+            return sizeDelegate.isSubtreeSizeExact();
+        }
+    }
+
+    /**
+     * A bounded cache evicting the least recently used entries, split into segments in access order, each guarded by
+     * its own monitor. The values are resolved outside the locks, so that a slow delegate does not block the other
+     * lookups.
+     */
+    private final class LruCache<K, V> {
+
+        private final boolean softValues;
+        private final Segment<K>[] segments;
+        private final int segmentShift;
+
+        @SuppressWarnings("unchecked")
+        LruCache(int maxEntries, boolean softValues) {
+            this.softValues = softValues;
+            int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, maxEntries / MIN_SEGMENT_ENTRIES));
+            segmentCount = Integer.highestOneBit(segmentCount);
+            this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+            this.segments = new Segment[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                // the first segments hold the remainder of the division
+                segments[i] = new Segment<>(maxEntries / segmentCount + (i < maxEntries % segmentCount ? 1 : 0));
+            }
+        }
+
+        V get(K key, Function<K, V> loader) {
+            assert key != null : "Invalid null node";
+            Segment<K> segment = segmentFor(key);
+            V value = lookup(segment, key);
+            if (value != null) {
+                hitCount.incrementAndGet();
+                return value;
+            }
+            missCount.incrementAndGet();
+            value = loader.apply(key);
+            synchronized (segment) {
+                segment.put(key, softValues ? new SoftReference<>(value) : value);
+            }
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        private V lookup(Segment<K> segment, K key) {
+            synchronized (segment) {
+                Object value = segment.get(key);
+                if (value instanceof SoftReference) {
+                    value = ((SoftReference<?>) value).get();
+                    if (value == null) {
+                        // reclaimed by the garbage collector
+                        segment.remove(key);
+                    }
+                }
+                return (V) value;
+            }
+        }
+
+        void remove(K key) {
+            Segment<K> segment = segmentFor(key);
+            synchronized (segment) {
+                segment.remove(key);
+            }
+        }
+
+        void clear() {
+            for (Segment<K> segment : segments) {
+                synchronized (segment) {
+                    segment.clear();
+                }
+            }
+        }
+
+        private Segment<K> segmentFor(K key) {
+            if (segments.length == 1) {
+                return segments[0];
+            }
+            // the high bits of the mixed hash: the low bits still spread the keys in the buckets of the segment
+            return segments[(key.hashCode() * 0x9E3779B9) >>> segmentShift];
+        }
+    }
+
+    /**
+     * A bounded map in access order.
+     */
+    private static final class Segment<K> extends LinkedHashMap<K, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Object> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package ch.gpitteloud.tree;
+
+import java.util.List;
+
+/**
+ * A child resolver is an abstraction over the children resolution of a tree node, for trees whose nodes do not know
+ * their parent (object graphs, immutable trees, streamed listings). The iterators, processors and printers of this
+ * package track the parent of the traversed nodes themselves, and only need a child resolver.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N>
+ *            The node type
+ * @see ParentChildResolver
+ */
+@FunctionalInterface
+public interface ChildResolver<N> {
+
+    /**
+     * Return the children of the node
+     *
+     * @param node
+     *            a node, not null
+     * @return the children of that node, never null
+     */
+    List<N> getChildren(N node);
+}
@@ -4,19 +4,23 @@ import org.apache.log4j.Logger;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.function.Predicate;
 
 /**
  * The class representing the children's list. This implementation manages {@link TreeNode#getIndex() index},
  * {@link TreeNode#getParent() parent} and {@link TreeNode#getPath() path} when nodes are added/removed from the list.
  * The ChildrenList is linked to the parent and cannot be used for another node.
  * <p>
- * The list is backed by an ArrayList and supports all its List's operations.
+ * The list is backed by an ArrayList and supports all its List's operations. The position of each child is kept in the
+ * child itself, and membership is answered through the parent of the child: {@link #contains(Object)},
+ * {@link #indexOf(Object)} and the check of duplicates are constant time operations.
  * <p>
  * If some method fails and throw an IllegalStateException because the parent of a node cannot be set (see
  * {@link TreeNode#setParent(TreeNode)}), the list remains unchanged, and all parent-children relations are like they
- * where before the failing method invocation, except for {@link #addAll(Collection)}, {@link #addAll(int, Collection)},
- * {@link #removeAll(Collection)}, {@link #retainAll(Collection)} and {@link #clear()}, that are not "atomic" (however,
- * the parent-child relations are still ensured for all elements).
+ * where before the failing method invocation. This includes the bulk operations ({@link #addAll(Collection)},
+ * {@link #addAll(int, Collection)}, {@link #removeAll(Collection)}, {@link #retainAll(Collection)},
+ * {@link #removeIf(Predicate)}, {@link #clear()} and {@link #setAll(Collection)}): all the nodes are validated and
+ * their parents set first, then the backing list is modified in one operation.
  *
  * @author Gaëtan Pitteloud
  * @param <N> The node type
@@ -43,7 +47,7 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
      */
     public boolean add(N node) {
         checkNotNull(node);
-        if (delegate.contains(node)) {
+        if (contains(node)) {
             if (logger.isDebugEnabled()) {
                 logger.debug("The node is already in the children's list");
             }
@@ -51,7 +55,9 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
         }
         checkCanAddChild(node);
         node.setParent(owner); // may fail if node is already the child of some other parent node
+        node.setIndex(delegate.size());
         delegate.add(node);
+        attached(node);
         return true;
     }
 
@@ -83,6 +89,43 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
 
         node.setParent(owner); // may fail if node is already the child of some other parent node
         delegate.add(index, node);
+        updateIndexes(index);
+        attached(node);
+    }
+
+    /**
+     * Append a node whose parent and index are already set, without any check. Used to restore the children of a
+     * deserialized node.
+     *
+     * @param node the node
+     */
+    void appendDeserialized(N node) {
+        delegate.add(node);
+    }
+
+    /**
+     * Update the node indexes of the tree, once a node was attached to the owner
+     */
+    private void attached(N node) {
+        owner.childrenChanged(Collections.singletonList(node), Collections.emptyList());
+    }
+
+    /**
+     * Update the node indexes of the tree, once a node was detached from the owner
+     */
+    private void detached(N node) {
+        owner.childrenChanged(Collections.emptyList(), Collections.singletonList(node));
+    }
+
+    /**
+     * Update the position of the children, from an index to the end of the list
+     *
+     * @param from the first index to update
+     */
+    private void updateIndexes(int from) {
+        for (int i = from; i < delegate.size(); i++) {
+            delegate.get(i).setIndex(i);
+        }
     }
 
     /**
@@ -104,43 +147,204 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
      * @throws IllegalArgumentException if the node is already in the children list
      */
     void checkNotAlreadyInList(N node) throws IllegalArgumentException {
-        if (delegate.contains(node)) {
+        if (contains(node)) {
             throw new IllegalArgumentException("The node is already in the children list");
         }
     }
 
+    /**
+     * Add the nodes at the end of the list, skipping the nodes that are already in the list (as {@link #add(TreeNode)}
+     * does). Either all the nodes are added, or none.
+     *
+     * @param col the nodes to add
+     * @return true if some nodes were added
+     */
     public boolean addAll(Collection<? extends N> col) {
+        List<N> nodes = checkNodesToAdd(col, true);
+        attachAll(nodes);
+        int size = delegate.size();
+        delegate.addAll(nodes);
+        updateIndexes(size);
+        owner.childrenChanged(nodes, Collections.emptyList());
+        return !nodes.isEmpty();
+    }
+
+    /**
+     * Insert the nodes at the specified position. If a node is already in the list, an exception is thrown. Either all
+     * the nodes are added, or none.
+     *
+     * @param index the index of the first inserted node
+     * @param col the nodes to add
+     * @return true if some nodes were added
+     */
+    public boolean addAll(int index, Collection<? extends N> col) {
+        checkIndexForAdd(index);
+        List<N> nodes = checkNodesToAdd(col, false);
+        attachAll(nodes);
+        delegate.addAll(index, nodes);
+        updateIndexes(index);
+        owner.childrenChanged(nodes, Collections.emptyList());
+        return !nodes.isEmpty();
+    }
+
+    /**
+     * Remove all the nodes. Either all the nodes are removed, or none.
+     */
+    public void clear() {
+        List<N> removed = new ArrayList<>(delegate);
+        detachAll(removed);
+        delegate.clear();
+        owner.childrenChanged(Collections.emptyList(), removed);
+    }
 
-        // add one by one in order to connect the child and its new parent
+    /**
+     * Replace all the children with the specified nodes, in this order. The nodes that are already in the list remain
+     * connected to the owner, the other nodes are connected to it, and the nodes that are no longer in the list are
+     * disconnected. Either the whole list is replaced, or nothing is changed.
+     *
+     * @param col the new children, without duplicates
+     */
+    void setAll(Collection<? extends N> col) {
+        List<N> nodes = new ArrayList<>(col.size());
+        List<N> added = new ArrayList<>();
+        Set<N> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
         for (N node : col) {
-            add(node);
+            checkNotNull(node);
+            if (!distinct.add(node)) {
+                throw new IllegalArgumentException("The node " + node + " is specified twice");
+            }
+            if (!contains(node)) {
+                checkCanAddChild(node);
+                added.add(node);
+            }
+            nodes.add(node);
         }
-        return true;
+        List<N> removed = new ArrayList<>();
+        for (N node : delegate) {
+            if (!distinct.contains(node)) {
+                removed.add(node);
+            }
+        }
+
+        detachAll(removed);
+        try {
+            attachAll(added);
+        } catch (IllegalStateException e) {
+            for (N node : removed) {
+                node.resetParent(owner);
+            }
+            throw e;
+        }
+        delegate.clear();
+        delegate.addAll(nodes);
+        updateIndexes(0);
+        owner.childrenChanged(added, removed);
     }
 
-    public boolean addAll(int index, Collection<? extends N> col) {
-        int i = index;
-        // added one by one
+    /**
+     * Validate the nodes to add: not null, not added twice, and accepted by the owner.
+     *
+     * @param col the nodes to add
+     * @param skipContained true to skip the nodes that are already in the list, false to throw an exception
+     * @return the nodes to add
+     */
+    private List<N> checkNodesToAdd(Collection<? extends N> col, boolean skipContained) {
+        List<N> nodes = new ArrayList<>(col.size());
+        Set<N> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
         for (N node : col) {
-            add(i++, node);
+            checkNotNull(node);
+            if (contains(node) || !distinct.add(node)) {
+                if (skipContained) {
+                    continue;
+                }
+                throw new IllegalArgumentException("The node is already in the children list");
+            }
+            checkCanAddChild(node);
+            nodes.add(node);
         }
-        return true;
+        return nodes;
     }
 
-    public void clear() {
-        int size = delegate.size();
-        // removed one by one in order to disconnect the parent of each child
-        for (int i = 0; i < size; i++) {
-            remove(0);
+    /**
+     * Connect the nodes to the owner, all or none: if a node cannot be connected, the nodes already connected are
+     * disconnected again.
+     *
+     * @param nodes the nodes to connect
+     */
+    private void attachAll(List<N> nodes) {
+        int attached = 0;
+        try {
+            for (N node : nodes) {
+                node.setParent(owner); // may fail if node is already the child of some other parent node
+                attached++;
+            }
+        } catch (IllegalStateException e) {
+            for (int i = 0; i < attached; i++) {
+                nodes.get(i).resetParent(null);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Disconnect the nodes from the owner, all or none: if a node cannot be disconnected, the nodes already
+     * disconnected are connected again. The cached tops and depths of the owner's component are invalidated once, not
+     * once per node.
+     *
+     * @param nodes the nodes to disconnect
+     */
+    private void detachAll(List<N> nodes) {
+        if (!nodes.isEmpty()) {
+            owner.detachChildren(nodes);
+        }
+    }
+
+    /**
+     * Remove the nodes accepted by a filter, all or none.
+     *
+     * @param filter the filter
+     * @return true if some nodes were removed
+     */
+    private boolean removeMatching(Predicate<? super N> filter) {
+        List<N> removed = new ArrayList<>();
+        int first = -1;
+        for (int i = 0; i < delegate.size(); i++) {
+            N node = delegate.get(i);
+            if (filter.test(node)) {
+                if (first < 0) {
+                    first = i;
+                }
+                removed.add(node);
+            }
         }
+        if (removed.isEmpty()) {
+            return false;
+        }
+        detachAll(removed);
+        // the disconnected nodes are removed in one pass
+        delegate.removeIf(node -> node.getParent() != owner);
+        updateIndexes(first);
+        owner.childrenChanged(Collections.emptyList(), removed);
+        return true;
     }
 
+    /**
+     * Answer whether a node is in this list, i.e. whether its parent is the owner of this list.
+     *
+     * @param o an object
+     * @return true if o is a child of the owner
+     */
     public boolean contains(Object o) {
-        return delegate.contains(o);
+        return o instanceof TreeNode && ((TreeNode<?>) o).getParent() == owner;
     }
 
     public boolean containsAll(Collection<?> c) {
-        return delegate.containsAll(c);
+        for (Object o : c) {
+            if (!contains(o)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public N get(int index) {
@@ -148,7 +352,7 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
     }
 
     public int indexOf(Object o) {
-        return delegate.indexOf(o);
+        return contains(o) ? ((TreeNode<?>) o).getIndex() : -1;
     }
 
     public boolean isEmpty() {
@@ -166,7 +370,8 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
     }
 
     public int lastIndexOf(Object o) {
-        return delegate.lastIndexOf(o);
+        // a node is at most once in the list
+        return indexOf(o);
     }
 
     /**
@@ -200,7 +405,7 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
     public boolean remove(Object o) {
 
         // keep the index to be able to reconnect the node if removal fails later
-        int index = delegate.indexOf(o);
+        int index = indexOf(o);
         if (index > -1) {
             delegate.remove(index); // faster than delegate.remove(o) since we know the index
             // we know o was in the list -> o is of type N
@@ -213,6 +418,8 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
                 delegate.add(index, node);
                 throw e;
             }
+            updateIndexes(index);
+            detached(node);
             return true;
         }
         return false;
@@ -234,27 +441,49 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
             delegate.add(index, node);
             throw e;
         }
+        updateIndexes(index);
+        detached(node);
         return node;
     }
 
+    /**
+     * Remove the nodes contained in the collection. Either all the nodes are removed, or none.
+     *
+     * @param c the nodes to remove
+     * @return true if some nodes were removed
+     */
     public boolean removeAll(Collection<?> c) {
-        boolean changed = false;
-        for (Object object : c) {
-            changed |= remove(object);
-        }
-        return changed;
+        Set<?> nodes = asSet(c);
+        return removeMatching(nodes::contains);
     }
 
+    /**
+     * Remove the nodes that are not contained in the collection. Either all the nodes are removed, or none.
+     *
+     * @param c the nodes to keep
+     * @return true if some nodes were removed
+     */
     public boolean retainAll(Collection<?> c) {
-        Iterator<N> it = iterator();
-        boolean changed = false;
-        while (it.hasNext()) {
-            if (!c.contains(it.next())) {
-                it.remove();
-                changed = true;
-            }
-        }
-        return changed;
+        Set<?> nodes = asSet(c);
+        return removeMatching(node -> !nodes.contains(node));
+    }
+
+    /**
+     * Remove the nodes accepted by the filter. Either all the nodes are removed, or none.
+     *
+     * @param filter the filter
+     * @return true if some nodes were removed
+     */
+    @Override
+    public boolean removeIf(Predicate<? super N> filter) {
+        return removeMatching(filter);
+    }
+
+    /**
+     * @return a set with the same elements, for constant time lookups (nodes use identity equals and hashCode)
+     */
+    private static Set<?> asSet(Collection<?> c) {
+        return c instanceof Set ? (Set<?>) c : new HashSet<>(c);
     }
 
     /**
@@ -286,6 +515,8 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
             delegate.set(index, previous);
             throw e;
         }
+        node.setIndex(index);
+        owner.childrenChanged(Collections.singletonList(node), Collections.singletonList(previous));
         return previous;
     }
 
@@ -345,6 +576,7 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
         private final ListIterator<N> listItr;
 
         private N current;
+        private int currentIndex;
 
         public ParentChildAwareListIterator(ListIterator<N> listItr) {
             this.listItr = listItr;
@@ -359,11 +591,13 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
         }
 
         public N next() {
+            currentIndex = listItr.nextIndex();
             this.current = listItr.next();
             return current;
         }
 
         public N previous() {
+            currentIndex = listItr.previousIndex();
             current = listItr.previous();
             return current;
         }
@@ -382,16 +616,21 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
             checkCanAddChild(node);
             node.setParent(owner);
             listItr.add(node);
+            updateIndexes(listItr.previousIndex());
             current = null;
+            attached(node);
         }
 
         public void remove() {
             if (current == null) {
                 throw new IllegalStateException();
             }
-            current.setParent(null);
+            N removed = current;
+            removed.setParent(null);
             listItr.remove();
+            updateIndexes(currentIndex);
             current = null;
+            detached(removed);
         }
 
         public void set(N node) {
@@ -411,7 +650,10 @@ class ChildrenList<N extends TreeNode<N>> implements List<N>, Serializable {
                 throw e;
             }
             listItr.set(node);
+            node.setIndex(currentIndex);
+            N previous = current;
             this.current = node;
+            owner.childrenChanged(Collections.singletonList(node), Collections.singletonList(previous));
         }
 
     }
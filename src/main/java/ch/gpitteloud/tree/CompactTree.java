@@ -0,0 +1,407 @@
+package ch.gpitteloud.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable snapshot of a tree, with the structure stored in int arrays instead of node objects. The nodes are
+ * numbered in DFS preorder (the root is 0), and for each index the arrays hold the index of the parent, of the first
+ * child, of the next sibling and the size of the subtree rooted at that node; the payloads (the nodes of the source
+ * tree) are held in a parallel array.
+ * <p>
+ * Iterating over the snapshot reads the arrays instead of following references between nodes: the DFS iteration reads
+ * the payloads sequentially, and neither the BFS nor the post-order iteration resolves the children of a node.
+ * <p>
+ * The snapshot can be used wherever a resolver is expected, through its {@link #getResolver() resolver view}, which
+ * also knows the exact size of each subtree. Nodes reachable through many paths are copied once per path.
+ * <p>
+ * The source structure must not contain cycles: a node that is one of its own ancestors would be copied endlessly.
+ * Cycles can be detected while taking the snapshot (see {@link #of(Object, ChildResolver, boolean)}).
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N> The node type
+ */
+public final class CompactTree<N> {
+
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int size;
+    private final Object[] payloads;
+    private final int[] parents;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final int[] subtreeSizes;
+
+    // identity of a payload -> index, created on the first use of the resolver view
+    private volatile Resolver<N> resolver;
+
+    private CompactTree(int size, Object[] payloads, int[] parents, int[] firstChildren, int[] nextSiblings,
+            int[] subtreeSizes) {
+        this.size = size;
+        this.payloads = payloads;
+        this.parents = parents;
+        this.firstChildren = firstChildren;
+        this.nextSiblings = nextSiblings;
+        this.subtreeSizes = subtreeSizes;
+    }
+
+    /**
+     * Take a snapshot of the tree rooted at a node. The tree is traversed once, in DFS order, and each node's children
+     * are resolved once. The structure must not contain cycles, that are not detected: the snapshot would never end.
+     *
+     * @param root the root of the tree, null for an empty snapshot
+     * @param resolver the resolver of the children of the nodes
+     * @return the snapshot
+     */
+    public static <N> CompactTree<N> of(N root, ChildResolver<N> resolver) {
+        return of(root, resolver, false);
+    }
+
+    /**
+     * Take a snapshot of the tree rooted at a node, like {@link #of(Object, ChildResolver)}, optionally detecting the
+     * cycles: a node that is one of its own ancestors (compared by identity) is rejected, which costs O(depth) time per
+     * node. Nodes reachable through many paths without being their own ancestors are not cycles.
+     *
+     * @param root the root of the tree, null for an empty snapshot
+     * @param resolver the resolver of the children of the nodes
+     * @param detectCycles true to throw a {@link CycleInTreeException} when a node is one of its own ancestors
+     * @return the snapshot
+     */
+    public static <N> CompactTree<N> of(N root, ChildResolver<N> resolver, boolean detectCycles) {
+        assert resolver != null : "Invalid null resolver";
+        Builder<N> builder = new Builder<>();
+        if (root != null) {
+            builder.build(root, resolver, detectCycles);
+        }
+        return builder.toTree();
+    }
+
+    /**
+     * @return the number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index the index of a node, in DFS preorder
+     * @return the node at that index
+     */
+    @SuppressWarnings("unchecked")
+    public N get(int index) {
+        checkIndex(index);
+        return (N) payloads[index];
+    }
+
+    /**
+     * @param index the index of a node
+     * @return the index of its parent, -1 for the root
+     */
+    public int getParent(int index) {
+        checkIndex(index);
+        return parents[index];
+    }
+
+    /**
+     * @param index the index of a node
+     * @return the index of its first child, -1 if it has no children
+     */
+    public int getFirstChild(int index) {
+        checkIndex(index);
+        return firstChildren[index];
+    }
+
+    /**
+     * @param index the index of a node
+     * @return the index of its next sibling, -1 if it is the last child of its parent
+     */
+    public int getNextSibling(int index) {
+        checkIndex(index);
+        return nextSiblings[index];
+    }
+
+    /**
+     * @param index the index of a node
+     * @return the number of nodes of the subtree rooted at that node, the node included: the indexes of the subtree
+     *         are from index (included) to index + subtree size (excluded)
+     */
+    public int getSubtreeSize(int index) {
+        checkIndex(index);
+        return subtreeSizes[index];
+    }
+
+    /**
+     * Iterate over the nodes in the specified mode.
+     *
+     * @param mode the exploration mode
+     * @return an iterator over the nodes, in DFS preorder or in BFS order
+     */
+    public Iterator<N> iterator(ExplorationMode mode) {
+        return mode == ExplorationMode.DFS ? new IndexIterator(null) : new IndexIterator(bfsOrder());
+    }
+
+    /**
+     * Iterate over the nodes, returning the children of each node before that node.
+     *
+     * @return an iterator over the nodes in post-order
+     */
+    public Iterator<N> postOrderIterator() {
+        return new IndexIterator(postOrder());
+    }
+
+    /**
+     * A resolver over the nodes of this snapshot, so that it can be used with the iterators, spliterators and
+     * processors. The nodes are found by identity in an index that is created on the first call; navigating with the
+     * indexes of the nodes (see {@link #getFirstChild(int)}) does not need it.
+     *
+     * @return the resolver view, with exact subtree sizes
+     */
+    public SubtreeSizeResolver<N> getResolver() {
+        Resolver<N> r = resolver;
+        if (r == null) {
+            synchronized (this) {
+                r = resolver;
+                if (r == null) {
+                    r = new Resolver<>(this);
+                    resolver = r;
+                }
+            }
+        }
+        return r;
+    }
+
+    private int[] bfsOrder() {
+        int[] order = new int[size];
+        if (size == 0) {
+            return order;
+        }
+        // the order array is the queue: head is the next node whose children are appended
+        int tail = 1;
+        for (int head = 0; head < tail; head++) {
+            for (int child = firstChildren[order[head]]; child != NONE; child = nextSiblings[child]) {
+                order[tail++] = child;
+            }
+        }
+        return order;
+    }
+
+    private int[] postOrder() {
+        int[] order = new int[size];
+        int count = 0;
+        int index = size == 0 ? NONE : 0;
+        while (index != NONE) {
+            // go down to the first leaf
+            while (firstChildren[index] != NONE) {
+                index = firstChildren[index];
+            }
+            order[count++] = index;
+            // go up while the nodes are last children, they are complete
+            while (nextSiblings[index] == NONE && parents[index] != NONE) {
+                index = parents[index];
+                order[count++] = index;
+            }
+            index = nextSiblings[index];
+        }
+        return order;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * Iterator over the payloads, in the order of an index array, or in preorder if the array is null
+     */
+    private final class IndexIterator implements Iterator<N> {
+
+        private final int[] order;
+        private int position;
+
+        IndexIterator(int[] order) {
+            this.order = order;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public N next() {
+            if (position >= size) {
+                throw new NoSuchElementException();
+            }
+            int index = order == null ? position : order[position];
+            position++;
+            return (N) payloads[index];
+        }
+    }
+
+    /**
+     * Resolver view of a snapshot, finding the index of a node in an open-addressing table of indexes, hashed on the
+     * identity of the payloads: the payloads array holds the keys, and no index is boxed.
+     */
+    private static final class Resolver<N> implements SubtreeSizeResolver<N> {
+
+        private final CompactTree<N> tree;
+        // the index of a payload, at the first free slot from the hash of that payload; NONE for a free slot
+        private final int[] slots;
+        private final int mask;
+
+        Resolver(CompactTree<N> tree) {
+            this.tree = tree;
+            // a load factor of at most 0.5 keeps the probe sequences short
+            int capacity = Integer.highestOneBit(Math.max(tree.size, 1) * 2 - 1) << 1;
+            this.slots = new int[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(slots, NONE);
+            for (int i = 0; i < tree.size; i++) {
+                int slot = findSlot(tree.payloads[i]);
+                // the first occurrence of a node copied many times
+                if (slots[slot] == NONE) {
+                    slots[slot] = i;
+                }
+            }
+        }
+
+        /**
+         * @return the slot holding the index of the node, or the free slot where it would be
+         */
+        private int findSlot(Object node) {
+            int slot = mix(System.identityHashCode(node)) & mask;
+            while (slots[slot] != NONE && tree.payloads[slots[slot]] != node) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static int mix(int hash) {
+            // spread the bits of the identity hash codes, like IdentityHashMap
+            return (hash << 1) - (hash << 8);
+        }
+
+        @Override
+        public List<N> getChildren(N node) {
+            int index = indexOf(node);
+            int child = tree.firstChildren[index];
+            if (child == NONE) {
+                return Collections.emptyList();
+            }
+            List<N> children = new ArrayList<>();
+            for (; child != NONE; child = tree.nextSiblings[child]) {
+                children.add(tree.get(child));
+            }
+            return Collections.unmodifiableList(children);
+        }
+
+        @Override
+        public N getParent(N node) {
+            int parent = tree.parents[indexOf(node)];
+            return parent == NONE ? null : tree.get(parent);
+        }
+
+        @Override
+        public long getSubtreeSize(N node) {
+            return tree.subtreeSizes[indexOf(node)];
+        }
+
+        @Override
+        public boolean isSubtreeSizeExact() {
+            return true;
+        }
+
+        private int indexOf(N node) {
+            int index = slots[findSlot(node)];
+            if (index == NONE) {
+                throw new IllegalArgumentException("The node " + node + " is not part of the tree");
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Fills growing arrays during a DFS traversal driven by an explicit stack of frames
+     */
+    private static final class Builder<N> {
+
+        private int size;
+        private Object[] payloads = new Object[INITIAL_CAPACITY];
+        private int[] parents = new int[INITIAL_CAPACITY];
+        private int[] firstChildren = new int[INITIAL_CAPACITY];
+        private int[] nextSiblings = new int[INITIAL_CAPACITY];
+        private int[] subtreeSizes = new int[INITIAL_CAPACITY];
+
+        void build(N root, ChildResolver<N> resolver, boolean detectCycles) {
+            List<NodeFrame<N>> frames = new ArrayList<>();
+            // for each frame, the index of its node and the index of the last added child
+            int[] frameIndexes = new int[INITIAL_CAPACITY];
+            int[] lastChildren = new int[INITIAL_CAPACITY];
+
+            add(root, NONE);
+            frames.add(new NodeFrame<>(root, resolver.getChildren(root)));
+            frameIndexes[0] = 0;
+            lastChildren[0] = NONE;
+            while (!frames.isEmpty()) {
+                int top = frames.size() - 1;
+                NodeFrame<N> frame = frames.get(top);
+                if (frame.hasNextChild()) {
+                    N child = frame.nextChild();
+                    if (detectCycles) {
+                        // the frames are the ancestors of the child
+                        PathNode.checkNotInFrames(frames, child);
+                    }
+                    int parent = frameIndexes[top];
+                    int index = add(child, parent);
+                    if (lastChildren[top] == NONE) {
+                        firstChildren[parent] = index;
+                    } else {
+                        nextSiblings[lastChildren[top]] = index;
+                    }
+                    lastChildren[top] = index;
+
+                    if (top + 1 == frameIndexes.length) {
+                        frameIndexes = Arrays.copyOf(frameIndexes, frameIndexes.length * 2);
+                        lastChildren = Arrays.copyOf(lastChildren, lastChildren.length * 2);
+                    }
+                    frames.add(new NodeFrame<>(child, resolver.getChildren(child)));
+                    frameIndexes[top + 1] = index;
+                    lastChildren[top + 1] = NONE;
+                } else {
+                    frames.remove(top);
+                    int index = frameIndexes[top];
+                    subtreeSizes[index] = size - index;
+                }
+            }
+        }
+
+        private int add(N node, int parent) {
+            if (size == payloads.length) {
+                int capacity = size * 2;
+                payloads = Arrays.copyOf(payloads, capacity);
+                parents = Arrays.copyOf(parents, capacity);
+                firstChildren = Arrays.copyOf(firstChildren, capacity);
+                nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+                subtreeSizes = Arrays.copyOf(subtreeSizes, capacity);
+            }
+            payloads[size] = node;
+            parents[size] = parent;
+            firstChildren[size] = NONE;
+            nextSiblings[size] = NONE;
+            return size++;
+        }
+
+        CompactTree<N> toTree() {
+            return new CompactTree<>(size, Arrays.copyOf(payloads, size), Arrays.copyOf(parents, size),
+                    Arrays.copyOf(firstChildren, size), Arrays.copyOf(nextSiblings, size),
+                    Arrays.copyOf(subtreeSizes, size));
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package ch.gpitteloud.tree;
 
 /**
- * This exception is thrown during iteration over the nodes of a tree, when the same node is encountered a second time
- * by the <code>next()</code> method, meaning the tree contains a cycle.
+ * This exception is thrown during iteration over the nodes of a tree, when a node returned by the resolver is one of
+ * its own ancestors on the path being traversed, meaning the tree contains a cycle. A node that is reached again
+ * through another path (a node shared by many parents) is not a cycle. It is only thrown when the cycle detector is
+ * enabled (see {@link DefaultTreeIterator#setCycleDetection(boolean)}).
  * <p>
  * It is essential to detect the cycles and block iteration, as a cycle otherwise means non-ending iteration.
  *
@@ -1,14 +1,33 @@
 package ch.gpitteloud.tree;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Default implementation of {@link TreeIterator}. The implementation ensures that a node is always traversed before its
  * children. The traversal mode (depth-first or breadth-first) is represented by the {@link ExplorationMode}.
  * <p>
- * The iterator contains a cycle detector (disabled by default) that blocks the second time a node is traversed (throws
- * an exception).
+ * The iterator knows the depth and the parent of each traversed node (see {@link #currentDepth()} and
+ * {@link #currentParent()}), without resolving its parents: a {@link ChildResolver} is enough.
+ * <p>
+ * The iterator contains a cycle detector (disabled by default, see {@link #setCycleDetection(boolean)}) that throws an
+ * exception when a node is one of its own ancestors. A node reached through many paths (DAG) is not a cycle.
+ * <p>
+ * Structures whose nodes are reachable through many paths (DAGs) may be traversed once per node with a
+ * {@link VisitedNodes} set (see {@link #setVisitedNodes(VisitedNodes)}).
+ * <p>
+ * The children of the next nodes waiting to be traversed may be resolved ahead on an executor (see
+ * {@link #setPrefetch(java.util.concurrent.Executor, int)}), so that slow resolutions overlap the processing of the
+ * traversed nodes.
  *
  * @author Gaëtan Pitteloud
  * @param <N> the node type
@@ -24,8 +43,9 @@ public class DefaultTreeIterator<N> implements TreeIterator<N> {
          * Add the children of the current element. Whatever BFS or DFS, the children must be removed in the same
          * order as was specified here.
          * @param elements children elements
+         * @param depth the depth of the children elements
          */
-        void addAll(List<? extends E> elements);
+        void addAll(List<? extends E> elements, int depth);
 
         /**
          * Get and remove the next element to process
@@ -33,6 +53,18 @@ public class DefaultTreeIterator<N> implements TreeIterator<N> {
          */
         E removeOne();
 
+        /**
+         * Get the next element to process, without removing it
+         * @return next element to process, or null if no more elements to process
+         */
+        E peekOne();
+
+        /**
+         * The depth of the next element to process
+         * @return depth of the next element, -1 if no more elements to process
+         */
+        int getNextDepth();
+
         /**
          * Remove all children that were last inserted. Depending on BFS or DFS, these are the last or the first N
          * elements.<p/>
@@ -42,6 +74,20 @@ public class DefaultTreeIterator<N> implements TreeIterator<N> {
          */
         void removeAll(int count);
 
+        /**
+         * Answer whether the next element to remove is one of the last inserted children
+         * @param count the number of last inserted children
+         * @return true if the next element {@link #removeOne()} would return is one of these children
+         */
+        boolean isNextAmongLastAdded(int count);
+
+        /**
+         * Get an element without removing it
+         * @param index the position of the element, 0 being the next element to remove
+         * @return the element at that position
+         */
+        E get(int index);
+
         /**
          * buffer size
          * @return buffer size
@@ -49,56 +95,438 @@ public class DefaultTreeIterator<N> implements TreeIterator<N> {
         int size();
     }
 
+    private final ExplorationMode mode;
     private final Buffer<N> buffer;
+    // for each element of buffer, the node whose children contained that element; null for the first elements
+    private final Buffer<N> parentBuffer;
+    // cycle detection: for each element of buffer, the ancestor path of that element; null if detection is disabled
+    private Buffer<PathNode<N>> pathBuffer;
+    private PathNode<N> currentAncestors;
+    // null if each node is traversed every time it is reached
+    private VisitedNodes<N> visitedNodes;
+    // true if the first elements of this iterator were already marked as visited by the creator of this iterator
+    private boolean rootsVisited;
+    // children fetched ahead of their traversal, null if the children are resolved when the nodes are traversed
+    private Function<? super N, CompletableFuture<List<N>>> childrenFetcher;
+    private int fetchWindow;
+    private Map<N, CompletableFuture<List<N>>> fetches;
+    // the number of fetches that are not completed, at most fetchWindow
+    private final AtomicInteger fetchesInFlight = new AtomicInteger();
+    private List<N> currentChildren;
+    private boolean started;
     private N current;
-    private final ParentChildResolver<N> resolver;
+    private N currentParent;
+    // the number of children of current that were inserted in the buffer, so that they can be skipped without
+    // resolving them a second time
+    private int currentChildrenCount;
+    private int currentDepth = -1;
+    private final ChildResolver<N> resolver;
 
     /**
      * @param mode exploration mode
      * @param first the first element of the tree (root).
-     * @param resolver The resolver of parent-child relationships for the node
+     * @param resolver The resolver of the children of the nodes
      */
-    public DefaultTreeIterator(ExplorationMode mode, N first, ParentChildResolver<N> resolver) {
+    public DefaultTreeIterator(ExplorationMode mode, N first, ChildResolver<N> resolver) {
         assert resolver != null : "Invalid null resolver";
         this.resolver = resolver;
+        this.mode = mode;
         buffer = mode.createInitialBuffer(first);
+        parentBuffer = mode.createInitialBuffer(null);
+        parentBuffer.addAll(Collections.nCopies(buffer.size(), null), 0);
     }
 
     /**
      * Used by DfsTreeSpliterator when splitting
      * @param mode exploration mode
      * @param roots the first elements of the tree.
-     * @param resolver The resolver of parent-child relationships for the node
+     * @param resolver The resolver of the children of the nodes
      */
-    DefaultTreeIterator(ExplorationMode mode, List<N> roots, ParentChildResolver<N> resolver) {
+    DefaultTreeIterator(ExplorationMode mode, List<N> roots, ChildResolver<N> resolver) {
         this(mode, (N) null, resolver);
-        buffer.addAll(roots);
+        buffer.addAll(roots, 0);
+        parentBuffer.addAll(Collections.nCopies(roots.size(), null), 0);
+    }
+
+    /**
+     * Enable or disable the cycle detector, before the iteration starts. When enabled, the iterator keeps the ancestor
+     * path of each node waiting to be traversed, and throws a {@link CycleInTreeException} when a node returned by the
+     * resolver is one of its own ancestors (compared by identity). Ancestor paths of siblings are shared, so that the
+     * detector costs one path element per node having buffered children, and O(depth) time per traversed node.
+     * <p>
+     * Nodes that are reachable through different paths without being their own ancestors are not considered cycles.
+     *
+     * @param enabled true to enable cycle detection
+     * @throws IllegalStateException if {@link #next()} was already invoked
+     */
+    public void setCycleDetection(boolean enabled) {
+        setCycleDetection(enabled, null);
+    }
+
+    /**
+     * Used by DfsTreeSpliterator, whose iterators may start in the middle of a tree
+     * @param enabled true to enable cycle detection
+     * @param rootsAncestors the ancestors of the first elements of this iterator, null if they have no ancestors
+     */
+    void setCycleDetection(boolean enabled, PathNode<N> rootsAncestors) {
+        if (started) {
+            throw new IllegalStateException("Cycle detection must be set before the iteration starts");
+        }
+        if (!enabled) {
+            pathBuffer = null;
+        } else {
+            // the nodes already buffered are the roots of the iteration
+            pathBuffer = mode.createInitialBuffer(null);
+            pathBuffer.addAll(Collections.nCopies(buffer.size(), rootsAncestors), 0);
+        }
+    }
+
+    /**
+     * @return true if the cycle detector is enabled
+     */
+    public boolean isCycleDetection() {
+        return pathBuffer != null;
+    }
+
+    /**
+     * Set the set of visited nodes, before the iteration starts, in order to traverse each node only once: a node is
+     * marked as visited when it is returned by {@link #next()}, and a node that was already visited is neither returned
+     * again, nor are its children traversed again. The order of the traversal remains the order of the exploration
+     * mode, where the nodes that were already visited are removed.
+     * <p>
+     * The visited set may be shared between iterators, in which case it must be thread-safe if the iterators are used
+     * concurrently.
+     *
+     * @param visitedNodes the visited set, null to traverse each node every time it is reached (the default)
+     * @throws IllegalStateException if {@link #next()} was already invoked
+     */
+    public void setVisitedNodes(VisitedNodes<N> visitedNodes) {
+        setVisitedNodes(visitedNodes, false);
+    }
+
+    /**
+     * Used by DfsTreeSpliterator, whose forked iterators start with nodes that the splitting iterator already marked
+     * @param visitedNodes the visited set, null to traverse each node every time it is reached
+     * @param rootsVisited true if the first elements of this iterator are already marked as visited on its behalf
+     */
+    void setVisitedNodes(VisitedNodes<N> visitedNodes, boolean rootsVisited) {
+        if (started) {
+            throw new IllegalStateException("Visited nodes must be set before the iteration starts");
+        }
+        this.visitedNodes = visitedNodes;
+        this.rootsVisited = rootsVisited;
+    }
+
+    /**
+     * @return the visited set, null if each node is traversed every time it is reached
+     */
+    public VisitedNodes<N> getVisitedNodes() {
+        return visitedNodes;
+    }
+
+    /**
+     * Enable or disable the prefetching of the children, before the iteration starts. When enabled, the children of the
+     * next count nodes waiting to be traversed are resolved on the executor, while the current node is processed by
+     * the caller: at most count resolutions are pending at any time. The order of the traversal and the semantics of
+     * {@link #skipChildren()} are unchanged: the children of a node are only used when the node is returned by
+     * {@link #next()}, and the prefetched children of skipped nodes are discarded (their resolution is cancelled if it
+     * did not start yet).
+     * <p>
+     * The resolver must support concurrent invocations of {@link ChildResolver#getChildren(Object)}.
+     *
+     * @param executor the executor resolving the children, null to disable prefetching
+     * @param count the number of next nodes whose children are prefetched, 0 to disable prefetching
+     * @throws IllegalStateException if {@link #next()} was already invoked
+     */
+    public void setPrefetch(Executor executor, int count) {
+        assert count >= 0 : "Invalid negative count";
+        if (executor == null || count == 0) {
+            setChildrenFetcher(null, 0);
+        } else {
+            setChildrenFetcher(node -> CompletableFuture.supplyAsync(() -> resolver.getChildren(node), executor),
+                    count);
+        }
+    }
+
+    /**
+     * Fetch the children of the next buffered nodes ahead of their traversal. Used by AsyncTreeIterator.
+     * @param childrenFetcher starts fetching the children of a node
+     * @param fetchWindow the number of next buffered nodes whose children are fetched ahead
+     */
+    void setChildrenFetcher(Function<? super N, CompletableFuture<List<N>>> childrenFetcher, int fetchWindow) {
+        if (started) {
+            throw new IllegalStateException("Children fetching must be set before the iteration starts");
+        }
+        cancelFetches();
+        this.childrenFetcher = fetchWindow > 0 ? childrenFetcher : null;
+        this.fetchWindow = fetchWindow;
+        this.fetches = this.childrenFetcher == null ? null : new IdentityHashMap<>();
+        startFetches();
+    }
+
+    /**
+     * The ancestors of the node returned by the last call to {@link #next()}, when the cycle detector is enabled. Used
+     * by DfsTreeSpliterator when splitting.
+     *
+     * @return the ancestor path of the current node, null if it has no ancestors or cycle detection is disabled
+     */
+    PathNode<N> getCurrentAncestors() {
+        return currentAncestors;
     }
 
     public boolean hasNext() {
+        if (visitedNodes != null) {
+            // remove the nodes that were visited since they were buffered
+            while (buffer.size() > 0 && !isFirstElement() && visitedNodes.contains(buffer.peekOne())) {
+                discardFetch(removeBufferedOne());
+            }
+            startFetches();
+        }
         return buffer.size() > 0;
     }
 
     public N next() {
-        if (hasNext()) {
-            current = buffer.removeOne();
-            buffer.addAll(resolver.getChildren(current));
-            return current;
+        N node = nextOrNull();
+        if (node == null) {
+            throw new NoSuchElementException();
         }
-        throw new NoSuchElementException();
+        return node;
+    }
+
+    /**
+     * Same as {@link #next()}, but return null instead of throwing an exception when the traversal is over. When the
+     * visited set is shared between threads, the buffered nodes may all be visited by other threads after
+     * {@link #hasNext()} returned true: this method is to be used instead of hasNext/next.
+     *
+     * @return the next node, or null if all nodes were traversed
+     */
+    N nextOrNull() {
+        while (buffer.size() > 0) {
+            started = true;
+            boolean firstElement = isFirstElement();
+            int depth = buffer.getNextDepth();
+            PathNode<N> ancestors = pathBuffer == null ? null : pathBuffer.peekOne();
+            N parent = parentBuffer.peekOne();
+            N node = removeBufferedOne();
+            if (visitedNodes == null || firstElement || visitedNodes.add(node)) {
+                visit(node, parent, depth, ancestors);
+                return node;
+            }
+            discardFetch(node);
+        }
+        return null;
+    }
+
+    private void visit(N node, N parent, int depth, PathNode<N> ancestors) {
+        current = node;
+        currentParent = parent;
+        currentDepth = depth;
+        currentAncestors = ancestors;
+        if (pathBuffer != null) {
+            PathNode.checkNotInPath(currentAncestors, current);
+        }
+        List<N> children = getChildren(current);
+        if (visitedNodes != null) {
+            children = removeVisited(children);
+        }
+        buffer.addAll(children, currentDepth + 1);
+        parentBuffer.addAll(Collections.nCopies(children.size(), current), currentDepth + 1);
+        if (pathBuffer != null && !children.isEmpty()) {
+            PathNode<N> path = new PathNode<>(current, currentAncestors);
+            pathBuffer.addAll(Collections.nCopies(children.size(), path), currentDepth + 1);
+        }
+        currentChildrenCount = children.size();
+        if (childrenFetcher != null) {
+            currentChildren = children;
+            startFetches();
+        }
+    }
+
+    /**
+     * Get the children of the node that is being traversed, from the fetch that was started ahead if any.
+     */
+    private List<N> getChildren(N node) {
+        CompletableFuture<List<N>> fetch = fetches == null ? null : fetches.remove(node);
+        return fetch == null ? resolver.getChildren(node) : join(fetch);
+    }
+
+    /**
+     * Start fetching the children of the next buffered nodes, within the fetch window, while less than fetchWindow
+     * fetches are not completed. The fetches started for nodes that are no longer among the next ones (in DFS, their
+     * children were buffered before them) remain in flight, and are counted.
+     */
+    private void startFetches() {
+        if (childrenFetcher == null) {
+            return;
+        }
+        int count = Math.min(fetchWindow, buffer.size());
+        for (int i = 0; i < count && fetchesInFlight.get() < fetchWindow; i++) {
+            N node = buffer.get(i);
+            if (!fetches.containsKey(node)) {
+                CompletableFuture<List<N>> fetch = childrenFetcher.apply(node);
+                fetchesInFlight.incrementAndGet();
+                // also invoked when the fetch is cancelled
+                fetch.whenComplete((children, e) -> fetchesInFlight.decrementAndGet());
+                fetches.put(node, fetch);
+            }
+        }
+    }
+
+    /**
+     * Cancel the fetch of the children of a node that will not be traversed
+     */
+    private void discardFetch(N node) {
+        if (fetches != null) {
+            CompletableFuture<List<N>> fetch = fetches.remove(node);
+            if (fetch != null) {
+                fetch.cancel(false);
+            }
+        }
+    }
+
+    private void cancelFetches() {
+        if (fetches != null) {
+            for (CompletableFuture<List<N>> fetch : fetches.values()) {
+                fetch.cancel(false);
+            }
+            fetches.clear();
+        }
+    }
+
+    /**
+     * Wait for the children, rethrowing the exception that completed the fetch, if any
+     */
+    static <N> List<N> join(CompletableFuture<List<N>> fetch) {
+        try {
+            return fetch.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the next buffered node is one of the first elements, already visited on behalf of this iterator
+     */
+    private boolean isFirstElement() {
+        return rootsVisited && buffer.getNextDepth() == 0;
+    }
+
+    /**
+     * Remove the next buffered node (and its parent and ancestor path), keeping the count of the children of current in
+     * sync.
+     */
+    private N removeBufferedOne() {
+        if (currentChildrenCount > 0 && buffer.isNextAmongLastAdded(currentChildrenCount)) {
+            currentChildrenCount--;
+        }
+        if (pathBuffer != null) {
+            pathBuffer.removeOne();
+        }
+        parentBuffer.removeOne();
+        return buffer.removeOne();
+    }
+
+    private List<N> removeVisited(List<N> children) {
+        List<N> unvisited = null;
+        for (int i = 0; i < children.size(); i++) {
+            N child = children.get(i);
+            if (visitedNodes.contains(child)) {
+                if (unvisited == null) {
+                    unvisited = new ArrayList<>(children.subList(0, i));
+                }
+            } else if (unvisited != null) {
+                unvisited.add(child);
+            }
+        }
+        return unvisited == null ? children : unvisited;
+    }
+
+    /**
+     * The depth of the node returned by the last call to {@link #next()}, relative to the first node of this iterator
+     * (whose depth is 0). The depth remains available after the children of that node were skipped or the node was
+     * removed.
+     *
+     * @return the depth of the last traversed node, or -1 if {@link #next()} was never invoked
+     */
+    public int currentDepth() {
+        return currentDepth;
+    }
+
+    /**
+     * The parent of the node returned by the last call to {@link #next()}, as tracked by the traversal: the node whose
+     * children contained the current node. The parent remains available after the children of the current node were
+     * skipped or the node was removed.
+     *
+     * @return the parent of the last traversed node, or null if it is one of the first nodes of this iterator or if
+     *         {@link #next()} was never invoked
+     */
+    public N currentParent() {
+        return currentParent;
+    }
+
+    /**
+     * The number of nodes waiting to be traversed, except the children of the current node. Used by
+     * DfsTreeSpliterator to know if nodes outside the subtree of the current node remain.
+     *
+     * @return the number of buffered nodes that are not children of the current node
+     */
+    int getPendingCountOutsideCurrentChildren() {
+        return buffer.size() - currentChildrenCount;
+    }
+
+    /**
+     * The children of the current node that are waiting to be traversed, as they were resolved when the current node
+     * was traversed. Used by DfsTreeSpliterator to split them without resolving them again.
+     *
+     * @return the buffered children of the current node, in traversal order
+     */
+    List<N> getCurrentChildren() {
+        List<N> children = new ArrayList<>(currentChildrenCount);
+        for (int i = 0; i < currentChildrenCount; i++) {
+            children.add(buffer.get(i));
+        }
+        return children;
+    }
+
+    /**
+     * The next siblings of the current node that are waiting to be traversed, as they were resolved when their parent
+     * was traversed (or the next first elements of this iterator, if the current node is one of them). In DFS, they
+     * follow the children of the current node in the buffer. Used by DfsTreeSpliterator to split them without
+     * resolving them again.
+     *
+     * @return the buffered next siblings of the current node, in traversal order
+     */
+    List<N> getPendingSiblings() {
+        assert mode == ExplorationMode.DFS : "Siblings are only buffered together in DFS";
+        List<N> siblings = new ArrayList<>();
+        for (int i = currentChildrenCount; i < buffer.size() && parentBuffer.get(i) == currentParent; i++) {
+            siblings.add(buffer.get(i));
+        }
+        return siblings;
     }
 
     /**
      * The current node is removed from the tree and its children will not be traversed by the iterator. This method can
      * be called only once per call to next.
+     * <p>
+     * The node is removed from the children list of its {@link #currentParent() tracked parent}, which must be
+     * modifiable: in a structure where the node has many parents, it is removed from the one it was reached through.
+     * The first nodes of the iteration have no tracked parent, and are only removed from the traversal.
      *
+     * @throws UnsupportedOperationException if the children list of the tracked parent is unmodifiable, e.g. when it
+     *             is resolved by a {@link CachingParentChildResolver}
      * @see java.util.Iterator#remove()
      */
     public void remove() {
         checkCurrentNotNull();
-        N parent = resolver.getParent(current);
-        if (parent != null) {
-            resolver.getChildren(parent).remove(current);
+        if (currentParent != null) {
+            resolver.getChildren(currentParent).remove(current);
         }
         removeChildrenAndSetCurrentToNull();
     }
@@ -119,8 +547,21 @@ public class DefaultTreeIterator<N> implements TreeIterator<N> {
     }
 
     private void removeChildrenAndSetCurrentToNull() {
-        buffer.removeAll(resolver.getChildren(current).size());
+        if (currentChildren != null) {
+            for (N child : currentChildren) {
+                discardFetch(child);
+            }
+            currentChildren = null;
+        }
+        buffer.removeAll(currentChildrenCount);
+        parentBuffer.removeAll(currentChildrenCount);
+        if (pathBuffer != null) {
+            pathBuffer.removeAll(currentChildrenCount);
+        }
+        currentChildrenCount = 0;
         current = null;
+        // the discarded fetches leave room for the next nodes
+        startFetches();
     }
 
 }
\ No newline at end of file
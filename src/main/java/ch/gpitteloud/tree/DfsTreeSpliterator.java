@@ -2,45 +2,117 @@ package ch.gpitteloud.tree;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Spliterator;
 import java.util.function.Consumer;
 
 /**
  * Spliterator that explores a tree in DFS mode. The split operation divides the siblings of the current node (if
- * there are many unhandled such nodes) between a forked spliterator and this spliterator, or explore the only
+ * there are many unhandled such nodes) between a forked spliterator and this spliterator, forks the subtree of the
+ * current node (if it is the last unhandled node of its level, but nodes of upper levels remain), or explore the only
  * remaining branch (if there is a single unhandled node == current in this level) until many children are found, in
  * order to split them.</p>
- * The spliterator's characteristics are ORDERED, NONNULL, DISTINCT.
+ * If the resolver is a {@link SubtreeSizeResolver}, the spliterator reports the number of remaining nodes, and
+ * siblings are divided so that both spliterators handle about the same number of nodes; otherwise the size is unknown
+ * and siblings are divided in two halves.</p>
+ * The spliterator's characteristics are ORDERED, NONNULL, DISTINCT, plus SIZED and SUBSIZED when the resolver reports
+ * exact subtree sizes.</p>
+ * The cycle detector of {@link DefaultTreeIterator} may be enabled, for this spliterator and all the spliterators
+ * forked from it: a forked spliterator receives the ancestors of its first nodes, so that the cycles going through the
+ * split points are detected as well.</p>
+ * With a {@link VisitedNodes} set shared by this spliterator and all the spliterators forked from it, each node of a
+ * structure whose nodes are reachable through many paths (DAG) is traversed only once; the set must be thread-safe for
+ * parallel streams (see {@link VisitedNodes#concurrentIdentity()}). Sizes are then unknown.
  *
  * @author Gaetan Pitteloud
  */
 public class DfsTreeSpliterator<T> implements Spliterator<T> {
 
-    private TreeIterator<T> nodes;
-    private final List<T> roots;
+    private static final long UNKNOWN_SIZE = Long.MAX_VALUE;
+
+    private DefaultTreeIterator<T> nodes;
     private final ParentChildResolver<T> resolver;
+    // null if the resolver does not know subtree sizes
+    private final SubtreeSizeResolver<T> sizeResolver;
+    private final boolean detectCycles;
+    // null if each node is traversed every time it is reached
+    private final VisitedNodes<T> visitedNodes;
+    // number of nodes not yet consumed, current included
+    private long size;
     private T current;
 
     public DfsTreeSpliterator(T root, final ParentChildResolver<T> resolver) {
-        this.roots = Collections.singletonList(root);
+        this(root, resolver, false);
+    }
+
+    /**
+     * @param root the root node
+     * @param resolver the resolver
+     * @param detectCycles true to throw a {@link CycleInTreeException} when a node is one of its own ancestors
+     * @see DefaultTreeIterator#setCycleDetection(boolean)
+     */
+    public DfsTreeSpliterator(T root, final ParentChildResolver<T> resolver, boolean detectCycles) {
+        this(root, resolver, detectCycles, null);
+    }
+
+    /**
+     * @param root the root node
+     * @param resolver the resolver
+     * @param detectCycles true to throw a {@link CycleInTreeException} when a node is one of its own ancestors
+     * @param visitedNodes the set of visited nodes, in order to traverse each node only once; null to traverse each
+     *            node every time it is reached
+     * @see DefaultTreeIterator#setVisitedNodes(VisitedNodes)
+     */
+    public DfsTreeSpliterator(T root, final ParentChildResolver<T> resolver, boolean detectCycles,
+            VisitedNodes<T> visitedNodes) {
         this.resolver = resolver;
+        this.detectCycles = detectCycles;
+        this.visitedNodes = visitedNodes;
+        // subtree sizes count the shared nodes many times
+        this.sizeResolver = resolver instanceof SubtreeSizeResolver && visitedNodes == null
+                ? (SubtreeSizeResolver<T>) resolver : null;
+        if (root == null) {
+            size = 0;
+        } else {
+            size = sizeResolver == null ? UNKNOWN_SIZE : sizeResolver.getSubtreeSize(root);
+        }
         nodes = new DefaultTreeIterator<>(ExplorationMode.DFS, root, resolver);
+        nodes.setCycleDetection(detectCycles);
+        nodes.setVisitedNodes(visitedNodes);
         advance();
     }
 
-    private DfsTreeSpliterator(List<T> roots, ParentChildResolver<T> resolver) {
+    /**
+     * Forked spliterator
+     * @param roots the first nodes, already marked as visited by the splitting spliterator
+     * @param rootsAncestors the ancestors of the roots, only used if cycles are to be detected
+     */
+    private DfsTreeSpliterator(List<T> roots, PathNode<T> rootsAncestors, ParentChildResolver<T> resolver,
+            DfsTreeSpliterator<T> splitting, long size) {
         this.resolver = resolver;
-        this.roots = roots;
-        nodes = new DefaultTreeIterator<T>(ExplorationMode.DFS, roots, resolver);
+        this.sizeResolver = splitting.sizeResolver;
+        this.size = size;
+        this.detectCycles = splitting.detectCycles;
+        this.visitedNodes = splitting.visitedNodes;
+        nodes = createIterator(roots, rootsAncestors, true, resolver);
         advance();
     }
 
+    private DefaultTreeIterator<T> createIterator(List<T> roots, PathNode<T> rootsAncestors, boolean rootsVisited,
+            ParentChildResolver<T> resolver) {
+        DefaultTreeIterator<T> iterator = new DefaultTreeIterator<>(ExplorationMode.DFS, roots, resolver);
+        iterator.setCycleDetection(detectCycles, rootsAncestors);
+        iterator.setVisitedNodes(visitedNodes, rootsVisited);
+        return iterator;
+    }
+
     @Override
     public void forEachRemaining(final Consumer<? super T> action) {
         while (current != null) {
             action.accept(current);
-            advance();
+            consumed();
         }
     }
 
@@ -48,14 +120,21 @@ public class DfsTreeSpliterator<T> implements Spliterator<T> {
     public boolean tryAdvance(final Consumer<? super T> action) {
         if (current != null) {
             action.accept(current);
-            advance();
+            consumed();
             return true;
         }
         return false;
     }
 
+    private void consumed() {
+        if (size != UNKNOWN_SIZE && size > 0) {
+            size--;
+        }
+        advance();
+    }
+
     private void advance() {
-        current = nodes.hasNext() ? nodes.next() : null;
+        current = nodes.nextOrNull();
     }
 
     /**
@@ -71,92 +150,226 @@ public class DfsTreeSpliterator<T> implements Spliterator<T> {
             return null;
         }
 
-        final List<T> siblings = getSiblings(current);
-
-        // how many siblings are left unhandled ?
-        int unhandled = siblings.size() - siblings.indexOf(current);
+        // the siblings left unhandled, as they were resolved by the iterator: resolving them again could return other
+        // nodes (a directory listed twice), that would be traversed twice or never
+        final List<T> siblings = nodes.getPendingSiblings();
+        siblings.add(0, current);
+        int unhandled = siblings.size();
         if (unhandled > 1) {
-            // first half of children handled by forked spliterator
-            // second half handled by this spliterator
-            int forkedSize = unhandled >>> 1;
-            final List<T> forkedRoots = new ArrayList<>(forkedSize);
-            for (int i = 0; i < forkedSize; i++) {
-                forkedRoots.add(current);
-                nodes.skipChildren();
-                advance();
+            return splitSiblings(siblings, unhandled);
+        } else if (nodes.getPendingCountOutsideCurrentChildren() > 0) {
+            // current is the last unhandled node of its level, but nodes of upper levels are still to be handled
+            return splitCurrentSubtree();
+        } else { // the subtree rooted by current is the only unhandled branch
+            return splitSingleBranch();
+        }
+    }
+
+    /**
+     * First siblings (current included) and their children handled by forked spliterator, next siblings handled by
+     * this spliterator.
+     */
+    private Spliterator<T> splitSiblings(List<T> siblings, int unhandled) {
+        int forkedCount;
+        long forkedSize;
+        if (sizeResolver == null) {
+            forkedCount = unhandled >>> 1;
+            forkedSize = UNKNOWN_SIZE;
+        } else {
+            long[] cumulativeSizes = getCumulativeSizes(siblings);
+            forkedCount = getBalancedSplitIndex(cumulativeSizes);
+            forkedSize = cumulativeSizes[forkedCount];
+        }
+
+        final List<T> forkedRoots = new ArrayList<>(forkedCount);
+        // the children of the forked roots, as they were resolved when advancing to each of them
+        final Map<T, List<T>> forkedChildren = new HashMap<>();
+        // the siblings share the ancestors of current
+        PathNode<T> forkedAncestors = nodes.getCurrentAncestors();
+        int depth = nodes.currentDepth();
+        for (int i = 0; i < forkedCount; i++) {
+            forkedRoots.add(current);
+            forkedChildren.put(current, nodes.getCurrentChildren());
+            nodes.skipChildren();
+            advance();
+            if (visitedNodes != null && (current == null || nodes.currentDepth() != depth)) {
+                // the next siblings were already visited through other paths
+                break;
             }
-            assert current != null; // this spliterator contains unhandled nodes
-            return new DfsTreeSpliterator<>(forkedRoots, resolver);
-        } else { // unhandled == 1, the subtree rooted by current is the only unhandled branch
-            T node = current;
-            while (true) {
-                final List<T> children = resolver.getChildren(node);
-                int size = children.size();
-                switch (size) {
-                    case 0:
-                        return null; // do not split : the only remaining node is current
-                    case 1:
-                        // 1 child : do not split here, explore further
-                        node = children.get(0);
-                        break;
-                    default:
-                        // node has many children : split them
-                        int mid = size >>> 1;
-                        final List<T> forkedChildren = new ArrayList<>(children.subList(0, mid));
-                        PartialResolver<T> forkedResolver = new PartialResolver<>(current, node, forkedChildren, resolver);
-                        final DfsTreeSpliterator<T> forkedSpliterator = new DfsTreeSpliterator<>(current, forkedResolver);
-
-                        // replace the iterator, restarting with newRoots
-                        final List<T> newRoots = new ArrayList<>(children.subList(mid, size));
-                        nodes = new DefaultTreeIterator<>(ExplorationMode.DFS, newRoots, resolver);
-                        advance();
-
-                        return forkedSpliterator;
-                }
+        }
+        assert current != null || visitedNodes != null; // this spliterator contains unhandled nodes
+        reduceSize(forkedSize);
+        return new DfsTreeSpliterator<>(forkedRoots, forkedAncestors,
+                new PartialResolver<>(forkedRoots.get(0), forkedChildren, resolver), this, forkedSize);
+    }
+
+    /**
+     * Current and its children handled by forked spliterator, nodes of upper levels handled by this spliterator.
+     */
+    private Spliterator<T> splitCurrentSubtree() {
+        T forkedRoot = current;
+        ParentChildResolver<T> forkedResolver = new PartialResolver<>(current,
+                Collections.singletonMap(current, nodes.getCurrentChildren()), resolver);
+        PathNode<T> forkedAncestors = nodes.getCurrentAncestors();
+        long forkedSize = sizeResolver == null ? UNKNOWN_SIZE : sizeResolver.getSubtreeSize(forkedRoot);
+        nodes.skipChildren();
+        advance();
+        assert current != null || visitedNodes != null; // this spliterator contains unhandled nodes
+        reduceSize(forkedSize);
+        return new DfsTreeSpliterator<>(Collections.singletonList(forkedRoot), forkedAncestors, forkedResolver, this,
+                forkedSize);
+    }
+
+    /**
+     * Explore the only remaining branch until a node with many children is found. Current, the nodes down to that
+     * node, and the first children of that node are handled by the forked spliterator, the last children are handled
+     * by this spliterator.
+     */
+    private Spliterator<T> splitSingleBranch() {
+        T node = current;
+        PathNode<T> currentAncestors = nodes.getCurrentAncestors();
+        // the ancestors of the children of node, when cycles are to be detected
+        PathNode<T> branch = currentAncestors;
+        // the children resolved along the branch, used by the forked spliterator instead of resolving them again
+        Map<T, List<T>> branchChildren = new HashMap<>();
+        List<T> children = nodes.getCurrentChildren();
+        while (true) {
+            int childrenCount = children.size();
+            if (detectCycles) {
+                branch = new PathNode<>(node, branch);
+            }
+            switch (childrenCount) {
+                case 0:
+                    if (node != current) {
+                        // do not split, but traverse the branch with the children resolved while exploring it
+                        branchChildren.put(node, children);
+                        PathNode<T> childAncestors = detectCycles ? new PathNode<>(current, currentAncestors) : null;
+                        List<T> child = nodes.getCurrentChildren();
+                        nodes = createIterator(child, childAncestors, false,
+                                new PartialResolver<>(child.get(0), branchChildren, resolver));
+                    }
+                    return null; // do not split : the only remaining nodes are current and its single branch
+                case 1:
+                    // 1 child : do not split here, explore further
+                    if (detectCycles) {
+                        PathNode.checkNotInPath(branch, children.get(0));
+                    }
+                    branchChildren.put(node, children);
+                    node = children.get(0);
+                    children = resolver.getChildren(node);
+                    break;
+                default:
+                    // node has many children : split them
+                    int mid;
+                    long remainingSize;
+                    if (sizeResolver == null) {
+                        mid = childrenCount >>> 1;
+                        remainingSize = UNKNOWN_SIZE;
+                    } else {
+                        long[] cumulativeSizes = getCumulativeSizes(children);
+                        mid = getBalancedSplitIndex(cumulativeSizes);
+                        remainingSize = cumulativeSizes[childrenCount] - cumulativeSizes[mid];
+                    }
+                    long forkedSize = sizeResolver == null ? UNKNOWN_SIZE : Math.max(0, size - remainingSize);
+
+                    branchChildren.put(node, new ArrayList<>(children.subList(0, mid)));
+                    PartialResolver<T> forkedResolver = new PartialResolver<>(current, branchChildren, resolver);
+                    final DfsTreeSpliterator<T> forkedSpliterator = new DfsTreeSpliterator<>(
+                            Collections.singletonList(current), currentAncestors, forkedResolver, this, forkedSize);
+
+                    // replace the iterator, restarting with newRoots, that are not visited yet
+                    final List<T> newRoots = new ArrayList<>(children.subList(mid, childrenCount));
+                    nodes = createIterator(newRoots, branch, false, resolver);
+                    advance();
+                    size = remainingSize;
+
+                    return forkedSpliterator;
             }
         }
     }
 
-    private List<T> getSiblings(T node) {
-        if (roots.contains(node)) {
-            return roots;
-        } else {
-            final T parent = resolver.getParent(node);
-            return resolver.getChildren(parent);
+    /**
+     * Return the cumulative sizes of the subtrees rooted at the specified nodes: the element at index i is the sum of
+     * the sizes of the first i subtrees.
+     *
+     * @param subtreeRoots the roots of the subtrees
+     * @return cumulative sizes, with one more element than subtreeRoots
+     */
+    private long[] getCumulativeSizes(List<T> subtreeRoots) {
+        long[] cumulativeSizes = new long[subtreeRoots.size() + 1];
+        int i = 0;
+        for (T subtreeRoot : subtreeRoots) {
+            cumulativeSizes[i + 1] = cumulativeSizes[i] + sizeResolver.getSubtreeSize(subtreeRoot);
+            i++;
+        }
+        return cumulativeSizes;
+    }
+
+    /**
+     * Return the number of first subtrees whose total size is the closest to the half of the total size.
+     *
+     * @param cumulativeSizes cumulative sizes of at least 2 subtrees
+     * @return the split index, at least 1, and less than the number of subtrees
+     */
+    private static int getBalancedSplitIndex(long[] cumulativeSizes) {
+        int count = cumulativeSizes.length - 1;
+        long half = cumulativeSizes[count] / 2;
+        int index = 1;
+        while (index < count - 1 && cumulativeSizes[index] < half) {
+            index++;
+        }
+        if (index > 1 && half - cumulativeSizes[index - 1] < cumulativeSizes[index] - half) {
+            index--;
+        }
+        return index;
+    }
+
+    private void reduceSize(long forkedSize) {
+        if (size != UNKNOWN_SIZE) {
+            size = Math.max(0, size - forkedSize);
         }
     }
 
     @Override
     public long estimateSize() {
-        return Long.MAX_VALUE;
+        return size;
     }
 
     @Override
     public int characteristics() {
-        return DISTINCT | NONNULL | ORDERED;
+        int characteristics = DISTINCT | NONNULL | ORDERED;
+        if (sizeResolver != null && sizeResolver.isSubtreeSizeExact()) {
+            characteristics |= SIZED | SUBSIZED;
+        }
+        return characteristics;
     }
 
+    /**
+     * The resolver of a forked spliterator: the children of the forked nodes are the ones resolved by the splitting
+     * spliterator. When forked from a single branch, the last node of the branch keeps only its first children.
+     */
     private static class PartialResolver<N> implements ParentChildResolver<N> {
         private final N root;
-        private final N partialParent;
-        private final List<N> partialChildren;
+        private final Map<N, List<N>> branchChildren;
         private final ParentChildResolver<N> delegate;
 
-        public PartialResolver(N root, N partialParent, List<N> partialChildren, ParentChildResolver<N> delegate) {
+        public PartialResolver(N root, Map<N, List<N>> branchChildren, ParentChildResolver<N> delegate) {
             this.root = root;
-            this.partialParent = partialParent;
-            this.partialChildren = partialChildren;
+            this.branchChildren = branchChildren;
             this.delegate = delegate;
         }
 
+        // nodes are compared with equals, as resolvers of value nodes (such as paths) return new instances
+
         @Override
         public N getParent(final N node) {
-            return node == root ? null : delegate.getParent(node);
+            return root.equals(node) ? null : delegate.getParent(node);
         }
 
         @Override
         public List<N> getChildren(final N node) {
-            return node == partialParent ? partialChildren : delegate.getChildren(node);
+            List<N> children = branchChildren.get(node);
+            return children != null ? children : delegate.getChildren(node);
         }
     }
 
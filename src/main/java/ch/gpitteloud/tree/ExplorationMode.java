@@ -2,7 +2,6 @@ package ch.gpitteloud.tree;
 
 import ch.gpitteloud.tree.DefaultTreeIterator.Buffer;
 
-import java.util.ArrayDeque;
 import java.util.List;
 
 /**
@@ -36,74 +35,170 @@ public enum ExplorationMode {
 
     abstract <N> Buffer<N> createInitialBuffer(N initialElement);
 
-    private abstract static class ArrayDequeBuffer<E> implements Buffer<E> {
-        final ArrayDeque<E> contents = new ArrayDeque<>();
+    /**
+     * Circular array buffer, where each element is stored along with its depth. Depths are kept in a primitive array
+     * parallel to the elements array, in order not to box them.
+     */
+    private abstract static class ArrayBuffer<E> implements Buffer<E> {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private Object[] elements = new Object[INITIAL_CAPACITY];
+        private int[] depths = new int[INITIAL_CAPACITY];
+        private int head;
+        private int size;
 
-        ArrayDequeBuffer(final E initialElement) {
+        ArrayBuffer(final E initialElement) {
             if (initialElement != null) {
-                contents.add(initialElement);
+                addLast(initialElement, 0);
+            }
+        }
+
+        final void addFirst(E element, int depth) {
+            ensureCapacity();
+            head = (head - 1) & (elements.length - 1);
+            elements[head] = element;
+            depths[head] = depth;
+            size++;
+        }
+
+        final void addLast(E element, int depth) {
+            ensureCapacity();
+            int tail = (head + size) & (elements.length - 1);
+            elements[tail] = element;
+            depths[tail] = depth;
+            size++;
+        }
+
+        final void removeFirst(int count) {
+            for (int i = 0; i < count && size > 0; i++) {
+                elements[head] = null;
+                head = (head + 1) & (elements.length - 1);
+                size--;
+            }
+        }
+
+        final void removeLast(int count) {
+            for (int i = 0; i < count && size > 0; i++) {
+                size--;
+                elements[(head + size) & (elements.length - 1)] = null;
+            }
+        }
+
+        private void ensureCapacity() {
+            if (size == elements.length) {
+                int capacity = elements.length << 1;
+                Object[] newElements = new Object[capacity];
+                int[] newDepths = new int[capacity];
+                int firstPart = Math.min(size, elements.length - head);
+                System.arraycopy(elements, head, newElements, 0, firstPart);
+                System.arraycopy(elements, 0, newElements, firstPart, size - firstPart);
+                System.arraycopy(depths, head, newDepths, 0, firstPart);
+                System.arraycopy(depths, 0, newDepths, firstPart, size - firstPart);
+                elements = newElements;
+                depths = newDepths;
+                head = 0;
             }
         }
 
         @Override
         public E removeOne() {
-            return contents.pollFirst();
+            if (size == 0) {
+                return null;
+            }
+            E element = peekOne();
+            removeFirst(1);
+            return element;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E peekOne() {
+            return size == 0 ? null : (E) elements[head];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            assert index >= 0 && index < size : "Invalid index " + index;
+            return (E) elements[(head + index) & (elements.length - 1)];
+        }
+
+        @Override
+        public int getNextDepth() {
+            return size == 0 ? -1 : depths[head];
         }
 
         @Override
         public int size() {
-            return contents.size();
+            return size;
         }
 
         @Override
         public String toString() {
-            return contents.toString();
+            StringBuilder buf = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    buf.append(", ");
+                }
+                buf.append(elements[(head + i) & (elements.length - 1)]);
+            }
+            return buf.append(']').toString();
         }
     }
 
     /**
      * Buffer for BFS : Queue
      */
-    private static class Queue<E> extends ArrayDequeBuffer<E> {
+    private static class Queue<E> extends ArrayBuffer<E> {
 
         Queue(final E initialElement) {
             super(initialElement);
         }
 
         @Override
-        public void addAll(final List<? extends E> elements) {
-            contents.addAll(elements);
+        public void addAll(final List<? extends E> elements, final int depth) {
+            for (E element : elements) {
+                addLast(element, depth);
+            }
         }
 
         @Override
         public void removeAll(final int count) {
-            for (int i = 0; i < count; i++) {
-                contents.pollLast();
-            }
+            removeLast(count);
+        }
+
+        @Override
+        public boolean isNextAmongLastAdded(final int count) {
+            // the last added elements are at the end of the queue
+            return size() <= count;
         }
     }
 
     /**
      * Buffer for DFS : Stack
      */
-    private static class Stack<E> extends ArrayDequeBuffer<E> {
+    private static class Stack<E> extends ArrayBuffer<E> {
 
         Stack(final E initialElement) {
             super(initialElement);
         }
 
         @Override
-        public void addAll(final List<? extends E> elements) {
+        public void addAll(final List<? extends E> elements, final int depth) {
             for (int i = elements.size(); i > 0; i--) {
-                contents.push(elements.get(i - 1));
+                addFirst(elements.get(i - 1), depth);
             }
         }
 
         @Override
         public void removeAll(final int count) {
-            for (int i = 0; i < count; i++) {
-                contents.pollFirst();
-            }
+            removeFirst(count);
+        }
+
+        @Override
+        public boolean isNextAmongLastAdded(final int count) {
+            // the last added elements are at the top of the stack
+            return count > 0;
         }
     }
 
@@ -0,0 +1,299 @@
+package ch.gpitteloud.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Internal fork/join task used to run the fold methods of {@link TreeProcessor}: the value of a node is its own value,
+ * combined with the values of its children, in the order of the children.
+ * <p>
+ * The task forks one task per child, and combines their values once they are all completed. Small subtrees (see
+ * {@link SequentialThreshold}) are folded within the task, in post-order with an explicit stack of frames; a fold
+ * object is only created for the nodes that have children, the values of leaves are combined directly into their
+ * parent.
+ * <p>
+ * When cycles are to be detected, each task knows the ancestors of its node, and the sequential fold checks the frames
+ * of the ancestors as well.
+ * <p>
+ * The value is held by the subclasses, in a field of the value type, so that primitive values are never boxed.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N> the node type
+ */
+abstract class ForkJoinFold<N> extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    final N node;
+    final ChildResolver<N> resolver;
+    final SequentialThreshold<N> threshold;
+    final boolean detectCycles;
+    // the ancestors of the node, when cycles are to be detected and the fold is forked
+    PathNode<N> ancestors;
+
+    ForkJoinFold(N node, ChildResolver<N> resolver, SequentialThreshold<N> threshold, boolean detectCycles) {
+        assert node != null : "Invalid null node";
+        this.node = node;
+        this.resolver = resolver;
+        this.threshold = threshold;
+        this.detectCycles = detectCycles;
+    }
+
+    /**
+     * @param child a child of the node
+     * @return a fold of the same kind for the child
+     */
+    abstract ForkJoinFold<N> newFold(N child);
+
+    private ForkJoinFold<N> newForkedFold(N child, PathNode<N> childAncestors) {
+        ForkJoinFold<N> fold = newFold(child);
+        fold.ancestors = childAncestors;
+        return fold;
+    }
+
+    /**
+     * Initialize the value with the own value of the node
+     */
+    abstract void initValue();
+
+    /**
+     * Combine the value with the value of a child that has no children
+     *
+     * @param leaf the child
+     */
+    abstract void combineLeaf(N leaf);
+
+    /**
+     * Combine the value with the value of a completed child fold
+     *
+     * @param child the child fold
+     */
+    abstract void combineFold(ForkJoinFold<N> child);
+
+    @Override
+    protected void compute() {
+        if (detectCycles) {
+            PathNode.checkNotInPath(ancestors, node);
+        }
+        if (threshold.isSequential(node)) {
+            computeSequentially();
+            return;
+        }
+        initValue();
+        List<N> children = resolver.getChildren(node);
+        PathNode<N> childAncestors = detectCycles ? new PathNode<>(node, ancestors) : null;
+        List<ForkJoinFold<N>> folds = new ArrayList<>(children.size());
+        for (N child : children) {
+            folds.add(newForkedFold(child, childAncestors));
+        }
+        invokeAll(folds);
+        for (ForkJoinFold<N> fold : folds) {
+            combineFold(fold);
+        }
+    }
+
+    private void computeSequentially() {
+        initValue();
+        List<N> children = resolver.getChildren(node);
+        if (children.isEmpty()) {
+            return;
+        }
+        List<NodeFrame<N>> frames = new ArrayList<>();
+        List<ForkJoinFold<N>> folds = new ArrayList<>();
+        frames.add(new NodeFrame<>(node, children));
+        folds.add(this);
+        while (!frames.isEmpty()) {
+            int top = frames.size() - 1;
+            NodeFrame<N> frame = frames.get(top);
+            if (frame.hasNextChild()) {
+                N child = frame.nextChild();
+                if (detectCycles) {
+                    PathNode.checkNotInFrames(frames, child);
+                    PathNode.checkNotInPath(ancestors, child);
+                }
+                List<N> grandChildren = resolver.getChildren(child);
+                if (grandChildren.isEmpty()) {
+                    folds.get(top).combineLeaf(child);
+                } else {
+                    ForkJoinFold<N> childFold = newFold(child);
+                    childFold.initValue();
+                    frames.add(new NodeFrame<>(child, grandChildren));
+                    folds.add(childFold);
+                }
+            } else {
+                frames.remove(top);
+                ForkJoinFold<N> completed = folds.remove(top);
+                if (top > 0) {
+                    folds.get(top - 1).combineFold(completed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fold of object values
+     */
+    static final class ObjectFold<N, R> extends ForkJoinFold<N> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Function<? super N, ? extends R> nodeValue;
+        private final BinaryOperator<R> combiner;
+        R value;
+
+        ObjectFold(N node, ChildResolver<N> resolver, SequentialThreshold<N> threshold,
+                Function<? super N, ? extends R> nodeValue, BinaryOperator<R> combiner,
+                boolean detectCycles) {
+            super(node, resolver, threshold, detectCycles);
+            this.nodeValue = nodeValue;
+            this.combiner = combiner;
+        }
+
+        @Override
+        ForkJoinFold<N> newFold(N child) {
+            return new ObjectFold<>(child, resolver, threshold, nodeValue, combiner, detectCycles);
+        }
+
+        @Override
+        void initValue() {
+            value = nodeValue.apply(node);
+        }
+
+        @Override
+        void combineLeaf(N leaf) {
+            value = combiner.apply(value, nodeValue.apply(leaf));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void combineFold(ForkJoinFold<N> child) {
+            value = combiner.apply(value, ((ObjectFold<N, R>) child).value);
+        }
+    }
+
+    /**
+     * Fold of long values
+     */
+    static final class LongFold<N> extends ForkJoinFold<N> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ToLongFunction<? super N> nodeValue;
+        private final LongBinaryOperator combiner;
+        long value;
+
+        LongFold(N node, ChildResolver<N> resolver, SequentialThreshold<N> threshold,
+                ToLongFunction<? super N> nodeValue, LongBinaryOperator combiner, boolean detectCycles) {
+            super(node, resolver, threshold, detectCycles);
+            this.nodeValue = nodeValue;
+            this.combiner = combiner;
+        }
+
+        @Override
+        ForkJoinFold<N> newFold(N child) {
+            return new LongFold<>(child, resolver, threshold, nodeValue, combiner, detectCycles);
+        }
+
+        @Override
+        void initValue() {
+            value = nodeValue.applyAsLong(node);
+        }
+
+        @Override
+        void combineLeaf(N leaf) {
+            value = combiner.applyAsLong(value, nodeValue.applyAsLong(leaf));
+        }
+
+        @Override
+        void combineFold(ForkJoinFold<N> child) {
+            value = combiner.applyAsLong(value, ((LongFold<N>) child).value);
+        }
+    }
+
+    /**
+     * Fold of int values
+     */
+    static final class IntFold<N> extends ForkJoinFold<N> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ToIntFunction<? super N> nodeValue;
+        private final IntBinaryOperator combiner;
+        int value;
+
+        IntFold(N node, ChildResolver<N> resolver, SequentialThreshold<N> threshold,
+                ToIntFunction<? super N> nodeValue, IntBinaryOperator combiner, boolean detectCycles) {
+            super(node, resolver, threshold, detectCycles);
+            this.nodeValue = nodeValue;
+            this.combiner = combiner;
+        }
+
+        @Override
+        ForkJoinFold<N> newFold(N child) {
+            return new IntFold<>(child, resolver, threshold, nodeValue, combiner, detectCycles);
+        }
+
+        @Override
+        void initValue() {
+            value = nodeValue.applyAsInt(node);
+        }
+
+        @Override
+        void combineLeaf(N leaf) {
+            value = combiner.applyAsInt(value, nodeValue.applyAsInt(leaf));
+        }
+
+        @Override
+        void combineFold(ForkJoinFold<N> child) {
+            value = combiner.applyAsInt(value, ((IntFold<N>) child).value);
+        }
+    }
+
+    /**
+     * Fold of double values
+     */
+    static final class DoubleFold<N> extends ForkJoinFold<N> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ToDoubleFunction<? super N> nodeValue;
+        private final DoubleBinaryOperator combiner;
+        double value;
+
+        DoubleFold(N node, ChildResolver<N> resolver, SequentialThreshold<N> threshold,
+                ToDoubleFunction<? super N> nodeValue, DoubleBinaryOperator combiner, boolean detectCycles) {
+            super(node, resolver, threshold, detectCycles);
+            this.nodeValue = nodeValue;
+            this.combiner = combiner;
+        }
+
+        @Override
+        ForkJoinFold<N> newFold(N child) {
+            return new DoubleFold<>(child, resolver, threshold, nodeValue, combiner, detectCycles);
+        }
+
+        @Override
+        void initValue() {
+            value = nodeValue.applyAsDouble(node);
+        }
+
+        @Override
+        void combineLeaf(N leaf) {
+            value = combiner.applyAsDouble(value, nodeValue.applyAsDouble(leaf));
+        }
+
+        @Override
+        void combineFold(ForkJoinFold<N> child) {
+            value = combiner.applyAsDouble(value, ((DoubleFold<N>) child).value);
+        }
+    }
+}
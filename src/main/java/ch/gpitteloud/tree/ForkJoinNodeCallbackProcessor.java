@@ -0,0 +1,84 @@
+package ch.gpitteloud.tree;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Internal fork/join task used to run {@link TreeProcessor#processNodesInParallel(Object, AroundChildrenNodeCallback)}.
+ * <p>
+ * The task processes its node, invokes beforeChildren, forks one task per child, and invokes afterChildren once all
+ * the child tasks completed. Small subtrees (see {@link SequentialThreshold}) are processed by a
+ * {@link StatefulNodeCallbackProcessor} within the task.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N> the node type
+ */
+class ForkJoinNodeCallbackProcessor<N> extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = Logger.getLogger(ForkJoinNodeCallbackProcessor.class);
+
+    private final N node;
+    private final ChildResolver<N> resolver;
+    private final AroundChildrenNodeCallback<N> callback;
+    private final SequentialThreshold<N> threshold;
+    private final boolean detectCycles;
+    // the ancestors of the node, when cycles are to be detected
+    private final PathNode<N> ancestors;
+
+    ForkJoinNodeCallbackProcessor(N node, ChildResolver<N> resolver, AroundChildrenNodeCallback<N> callback,
+            SequentialThreshold<N> threshold, boolean detectCycles, PathNode<N> ancestors) {
+        assert node != null : "Invalid null node";
+        assert callback != null : "Invalid null callback";
+        this.node = node;
+        this.resolver = resolver;
+        this.callback = callback;
+        this.threshold = threshold;
+        this.detectCycles = detectCycles;
+        this.ancestors = ancestors;
+    }
+
+    @Override
+    protected void compute() {
+        if (threshold.isSequential(node)) {
+            new StatefulNodeCallbackProcessor<>(node, resolver, callback, detectCycles, ancestors).processNodes();
+            return;
+        }
+        if (detectCycles) {
+            PathNode.checkNotInPath(ancestors, node);
+        }
+
+        boolean processChildren = callback.processNode(node);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Invoked process on " + node + ", skip children ? " + !processChildren);
+        }
+        if (!processChildren) {
+            return;
+        }
+        List<N> children = resolver.getChildren(node);
+        if (children.isEmpty()) {
+            return;
+        }
+        callback.beforeChildren(node);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Invoked before children on " + node);
+        }
+
+        PathNode<N> childAncestors = detectCycles ? new PathNode<>(node, ancestors) : null;
+        List<ForkJoinNodeCallbackProcessor<N>> tasks = new ArrayList<>(children.size());
+        for (N child : children) {
+            tasks.add(new ForkJoinNodeCallbackProcessor<>(child, resolver, callback, threshold, detectCycles,
+                    childAncestors));
+        }
+        invokeAll(tasks);
+
+        callback.afterChildren(node);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Invoked after children on " + node);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ch.gpitteloud.tree;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Internal fork/join task used to run the parallel methods of {@link TreeTransformer}.
+ * <p>
+ * A task handles source nodes that are already mapped to target nodes: it invokes the callback for each child of the
+ * source nodes, in the order of the source nodes and of their children, and then forks tasks for the children that are
+ * mapped to target nodes. The target nodes of a task are thus only given to the callback by that task, which keeps the
+ * children of each target node in source order without any lock. Sibling source nodes mapped to a same target node
+ * (such as their target parent node, to flatten a level) are handled by a single task, level by level like the
+ * sequential transformation. Small subtrees of a single source node (see {@link SequentialThreshold}) are handled by a
+ * {@link StatefulNodeCallbackTransformer} within the task.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <S> Source node type
+ * @param <T> Target node type
+ */
+class ForkJoinNodeCallbackTransformer<S, T> extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = Logger.getLogger(ForkJoinNodeCallbackTransformer.class);
+
+    private final ChildResolver<S> sourceResolver;
+    private final List<S> sources;
+    // the target nodes mapped to each source node
+    private final List<List<T>> targets;
+    private final MultiNodesCallbackHandler<S, T> callback;
+    private final SequentialThreshold<S> threshold;
+
+    /**
+     * @param sourceResolver the source resolver
+     * @param source the source node
+     * @param targets the target nodes mapped to the source node, not empty
+     * @param callback the callback
+     * @param threshold the sequential threshold
+     */
+    ForkJoinNodeCallbackTransformer(ChildResolver<S> sourceResolver, S source, List<T> targets,
+            MultiNodesCallbackHandler<S, T> callback, SequentialThreshold<S> threshold) {
+        this(sourceResolver, Collections.singletonList(source), Collections.singletonList(targets), callback,
+                threshold);
+    }
+
+    /**
+     * @param sourceResolver the source resolver
+     * @param sources sibling source nodes, in source order
+     * @param targets the target nodes mapped to each source node, not empty
+     * @param callback the callback
+     * @param threshold the sequential threshold
+     */
+    private ForkJoinNodeCallbackTransformer(ChildResolver<S> sourceResolver, List<S> sources, List<List<T>> targets,
+            MultiNodesCallbackHandler<S, T> callback, SequentialThreshold<S> threshold) {
+        assert !sources.isEmpty() && sources.size() == targets.size() : "Invalid sources " + sources;
+        this.sourceResolver = sourceResolver;
+        this.sources = sources;
+        this.targets = targets;
+        this.callback = callback;
+        this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+        if (sources.size() == 1 && threshold.isSequential(sources.get(0))) {
+            new StatefulNodeCallbackTransformer<>(sourceResolver, sources.get(0), targets.get(0), callback).update();
+            return;
+        }
+
+        List<S> mappedChildren = new ArrayList<>();
+        List<List<T>> childrenTargets = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            for (S child : sourceResolver.getChildren(sources.get(i))) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Handling source node " + child);
+                }
+                List<T> childTargets = StatefulNodeCallbackTransformer.invokeCallback(callback, child,
+                        targets.get(i));
+                if (childTargets.isEmpty()) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Skipping children of source node " + child);
+                    }
+                } else {
+                    mappedChildren.add(child);
+                    childrenTargets.add(childTargets);
+                }
+            }
+        }
+        invokeAll(createTasks(mappedChildren, childrenTargets));
+    }
+
+    /**
+     * Create one task per group of source nodes sharing target nodes, so that each target node is given to the
+     * callback by a single task
+     */
+    private List<ForkJoinNodeCallbackTransformer<S, T>> createTasks(List<S> children, List<List<T>> childrenTargets) {
+        // union-find of the children sharing target nodes, each group represented by its first child
+        int[] groups = new int[children.size()];
+        Map<T, Integer> owners = new IdentityHashMap<>();
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = i;
+            for (T target : childrenTargets.get(i)) {
+                Integer owner = owners.putIfAbsent(target, i);
+                if (owner != null) {
+                    int a = find(groups, owner);
+                    int b = find(groups, i);
+                    groups[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+        }
+
+        // the first child of a group creates its task, the next ones join it
+        int[] taskIndexes = new int[groups.length];
+        List<List<S>> taskSources = new ArrayList<>();
+        List<List<List<T>>> taskTargets = new ArrayList<>();
+        for (int i = 0; i < groups.length; i++) {
+            int group = find(groups, i);
+            if (group == i) {
+                taskIndexes[i] = taskSources.size();
+                taskSources.add(new ArrayList<>());
+                taskTargets.add(new ArrayList<>());
+            } else {
+                taskIndexes[i] = taskIndexes[group];
+            }
+            taskSources.get(taskIndexes[i]).add(children.get(i));
+            taskTargets.get(taskIndexes[i]).add(childrenTargets.get(i));
+        }
+        List<ForkJoinNodeCallbackTransformer<S, T>> tasks = new ArrayList<>(taskSources.size());
+        for (int t = 0; t < taskSources.size(); t++) {
+            if (logger.isDebugEnabled() && taskSources.get(t).size() > 1) {
+                logger.debug("Handling source nodes " + taskSources.get(t) + " in a single task: they share targets");
+            }
+            tasks.add(new ForkJoinNodeCallbackTransformer<>(sourceResolver, taskSources.get(t), taskTargets.get(t),
+                    callback, threshold));
+        }
+        return tasks;
+    }
+
+    private static int find(int[] groups, int i) {
+        while (groups[i] != i) {
+            groups[i] = groups[groups[i]];
+            i = groups[i];
+        }
+        return i;
+    }
+}
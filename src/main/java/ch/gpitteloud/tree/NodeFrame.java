@@ -0,0 +1,38 @@
+package ch.gpitteloud.tree;
+
+import java.util.List;
+
+/**
+ * A node being explored in a depth-first traversal driven by an explicit stack of frames: the node, its children
+ * (resolved once when the frame is created) and the position of the next child to explore.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N> The node type
+ */
+final class NodeFrame<N> {
+
+    final N node;
+    final List<N> children;
+    private int cursor;
+
+    NodeFrame(N node, List<N> children) {
+        this.node = node;
+        this.children = children;
+    }
+
+    /**
+     * @return true if some children of the node were not explored yet
+     */
+    boolean hasNextChild() {
+        return cursor < children.size();
+    }
+
+    /**
+     * Return the next unexplored child and move the cursor after it
+     *
+     * @return the next child
+     */
+    N nextChild() {
+        return children.get(cursor++);
+    }
+}
@@ -0,0 +1,96 @@
+package ch.gpitteloud.tree;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * An index of the nodes of a {@link Tree} by a key extracted from each node, created with
+ * {@link Tree#createIndex(Function)}. The index is kept up to date by the tree: the nodes attached to the tree are
+ * added, and the nodes detached from it are removed, whatever the operation of the children's lists.
+ * <p>
+ * The key of a node is extracted when the node is added to the index: if it changes while the node is in the tree, the
+ * index must be {@link #rebuild() rebuilt}. Nodes with a null key are not indexed. Keys are expected to be unique: if
+ * two nodes have the same key, the index holds the last added one.
+ * <p>
+ * The index is updated once the operation of the children's list is complete: if the key extractor throws an
+ * exception, the tree is modified but the index is not up to date, and must be rebuilt.
+ * <p>
+ * Like the tree, the index is not thread-safe.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <K> The key type
+ * @param <N> The node type
+ */
+public final class NodeIndex<K, N extends TreeNode<N>> {
+
+    private final Tree<N> tree;
+    private final Function<? super N, ? extends K> keyExtractor;
+    private final Map<K, N> nodes = new HashMap<>();
+
+    NodeIndex(Tree<N> tree, Function<? super N, ? extends K> keyExtractor) {
+        assert keyExtractor != null : "Invalid null keyExtractor";
+        this.tree = tree;
+        this.keyExtractor = keyExtractor;
+    }
+
+    /**
+     * Find a node from its key, in constant time.
+     *
+     * @param key a key
+     * @return the node of the tree with that key, or null if there is none
+     */
+    public N get(K key) {
+        return nodes.get(key);
+    }
+
+    /**
+     * @param key a key
+     * @return true if a node of the tree has that key
+     */
+    public boolean containsKey(K key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * @return the number of indexed nodes
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Index all the nodes of the tree again, after keys were changed.
+     */
+    public void rebuild() {
+        nodes.clear();
+        add(Tree.subtreeNodes(tree.getRoot()));
+    }
+
+    /**
+     * @return the tree whose nodes are indexed
+     */
+    public Tree<N> getTree() {
+        return tree;
+    }
+
+    void add(List<N> subtree) {
+        for (N node : subtree) {
+            K key = keyExtractor.apply(node);
+            if (key != null) {
+                nodes.put(key, node);
+            }
+        }
+    }
+
+    void remove(List<N> subtree) {
+        for (N node : subtree) {
+            K key = keyExtractor.apply(node);
+            if (key != null) {
+                // another node with the same key may have replaced it
+                nodes.remove(key, node);
+            }
+        }
+    }
+}
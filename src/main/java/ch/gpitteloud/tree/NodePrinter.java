@@ -1,5 +1,8 @@
 package ch.gpitteloud.tree;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
 
@@ -7,6 +10,12 @@ import java.util.function.Function;
 /**
  * A helper that prints a tree, with each node on a new line, in the same layout as an explorer or the dependency tree
  * of Maven.
+ * <p>
+ * The printer accepts a {@link ChildResolver}, for the nodes that do not know their parent. With such a resolver, a
+ * node printed from the middle of a tree is printed as a root, without the leading chars of its ancestors; with a
+ * {@link ParentChildResolver}, its line and the lines of its descendants keep the leading chars of its position in the
+ * whole tree. {@link #getResolver()} answers the parent-child resolver only; subclasses that print from a children
+ * resolver use {@link #getChildResolver()}.
  *
  * @author Gaëtan Pitteloud
  * @param <N>
@@ -14,7 +23,7 @@ import java.util.function.Function;
  */
 public class NodePrinter<N> {
 
-    private final ParentChildResolver<N> resolver;
+    private final ChildResolver<N> resolver;
     private final Function<N, String> toStringFunction;
 
     private char beforeNodeChar = '-';
@@ -27,13 +36,13 @@ public class NodePrinter<N> {
      * Create the printer.
      *
      * @param resolver
-     *            parent-child resolver
+     *            children resolver
      */
-    public NodePrinter(ParentChildResolver<N> resolver) {
+    public NodePrinter(ChildResolver<N> resolver) {
         this(resolver, String::valueOf);
     }
 
-    public NodePrinter(ParentChildResolver<N> resolver, Function<N, String> toString) {
+    public NodePrinter(ChildResolver<N> resolver, Function<N, String> toString) {
         assert resolver != null : "Invalid null resolver";
         assert toString != null : "Invalid null toString function";
         this.resolver = resolver;
@@ -48,55 +57,108 @@ public class NodePrinter<N> {
      */
     public String toString(N rootNode) {
         StringBuilder buf = new StringBuilder();
-        DefaultTreeIterator<N> i = new DefaultTreeIterator<>(ExplorationMode.DFS, rootNode, resolver);
-        while (i.hasNext()) {
-            printNodeInTree(i.next(), buf);
+        try {
+            print(rootNode, buf);
+        } catch (IOException e) {
+            // a StringBuilder never throws IOException
+            throw new UncheckedIOException(e);
         }
-
         return buf.toString();
     }
 
     /**
-     * Print a single node at the end of the buffer, with correct indentation and final '\n'
+     * Print the tree to the specified output, one line per node. Each line is written once, straight to the output,
+     * so that printing a large tree to a {@link java.io.Writer} or a {@link java.io.PrintStream} does not require to
+     * hold the whole representation in memory.
+     * <p>
+     * The tree is explored in DFS with a stack of frames; the leading chars of the lines are kept in a running prefix
+     * that grows when going down a level and shrinks when going up. Printing is thus linear in the output size. The
+     * parents are resolved only to compute the leading chars of the ancestors of the first node, when the resolver is a
+     * {@link ParentChildResolver}.
      *
-     * @param node a node
-     * @param buf the current buffer
+     * @param rootNode the first node to print, with its descendants, nothing is printed if null
+     * @param out the output
+     * @throws IOException if the output fails
      */
-    private void printNodeInTree(N node, StringBuilder buf) {
-        N parent = resolver.getParent(node);
+    public void print(N rootNode, Appendable out) throws IOException {
+        if (rootNode == null) {
+            return;
+        }
+        // leading chars of the children of the top frame's node
+        StringBuilder prefix = new StringBuilder();
+        N parent = resolver instanceof ParentChildResolver ? ((ParentChildResolver<N>) resolver).getParent(rootNode)
+                : null;
         if (parent == null) {
-            appendNode(node, buf);
+            appendNode(rootNode, out);
         } else {
+            appendAncestorsPrefix(parent, prefix);
+            boolean lastChild = isLastChild(rootNode, parent);
+            out.append(prefix).append(lastChild ? lastChildChar : linkToCurrentChildChar).append(beforeNodeChar)
+                    .append(sep);
+            appendNode(rootNode, out);
+            appendLevelPrefix(lastChild, prefix);
+        }
 
-            // position of insertion of leading chars for each parent
-            int offset = buf.length();
-            buf.append((isLastChild(node) ? lastChildChar : linkToCurrentChildChar)).append(beforeNodeChar).append(sep);
-            appendNode(node, buf);
-
-            while (parent != null) {
-                N grandParent = resolver.getParent(parent);
-                String prefix = grandParent == null ? "" : isLastChild(parent) ? ("" + sep + sep + sep) : (""
-                        + linkToNextChildChar + sep + sep);
-                buf.insert(offset, prefix);
-                parent = grandParent;
+        List<NodeFrame<N>> frames = new ArrayList<>();
+        frames.add(new NodeFrame<>(rootNode, resolver.getChildren(rootNode)));
+        while (!frames.isEmpty()) {
+            NodeFrame<N> top = frames.get(frames.size() - 1);
+            if (top.hasNextChild()) {
+                N node = top.nextChild();
+                boolean lastChild = !top.hasNextChild();
+                out.append(prefix).append(lastChild ? lastChildChar : linkToCurrentChildChar).append(beforeNodeChar)
+                        .append(sep);
+                appendNode(node, out);
+
+                List<N> children = resolver.getChildren(node);
+                if (!children.isEmpty()) {
+                    frames.add(new NodeFrame<>(node, children));
+                    appendLevelPrefix(lastChild, prefix);
+                }
+            } else {
+                frames.remove(frames.size() - 1);
+                // the root frame does not contribute to the prefix
+                if (!frames.isEmpty()) {
+                    prefix.setLength(prefix.length() - 3);
+                }
             }
         }
+    }
 
+    private void appendNode(N node, Appendable out) throws IOException {
+        out.append(toStringFunction.apply(node)).append('\n');
     }
 
-    private void appendNode(N node, StringBuilder buf) {
-        buf.append(toStringFunction.apply(node)).append("\n");
+    /**
+     * Append the leading chars of the children of a node: a link to the next siblings of the node, if any
+     */
+    private void appendLevelPrefix(boolean lastChild, StringBuilder prefix) {
+        if (lastChild) {
+            prefix.append(sep).append(sep).append(sep);
+        } else {
+            prefix.append(linkToNextChildChar).append(sep).append(sep);
+        }
     }
 
     /**
-     * Answer if this node is the last child of its parent's children. Invalid if the node has no parents.
+     * Append the leading chars of the children of a node, for each of its ancestors from the top of the tree down to
+     * the node itself. The top of the tree does not contribute to the prefix.
      *
-     * @param node
-     *            a node with a parent
-     * @return true if last child, false otherwise
+     * @param node a node, not null
+     * @param prefix the prefix to append to
      */
-    private boolean isLastChild(N node) {
-        N parent = resolver.getParent(node);
+    private void appendAncestorsPrefix(N node, StringBuilder prefix) {
+        ParentChildResolver<N> parentResolver = (ParentChildResolver<N>) resolver;
+        List<Boolean> lastChildren = new ArrayList<>();
+        for (N n = node, p = parentResolver.getParent(n); p != null; n = p, p = parentResolver.getParent(p)) {
+            lastChildren.add(isLastChild(n, p));
+        }
+        for (int i = lastChildren.size() - 1; i >= 0; i--) {
+            appendLevelPrefix(lastChildren.get(i), prefix);
+        }
+    }
+
+    private boolean isLastChild(N node, N parent) {
         List<N> siblings = resolver.getChildren(parent);
         return siblings.get(siblings.size() - 1).equals(node);
     }
@@ -188,8 +250,20 @@ public class NodePrinter<N> {
 
     /**
      * @return return resolver
+     * @throws UnsupportedOperationException if the printer was created with a children resolver, see
+     *             {@link #getChildResolver()}
      */
     protected ParentChildResolver<N> getResolver() {
+        if (!(resolver instanceof ParentChildResolver)) {
+            throw new UnsupportedOperationException("The printer was created with a children resolver");
+        }
+        return (ParentChildResolver<N>) this.resolver;
+    }
+
+    /**
+     * @return return resolver, a {@link ParentChildResolver} or a children resolver
+     */
+    protected ChildResolver<N> getChildResolver() {
         return this.resolver;
     }
 
@@ -1,12 +1,17 @@
 package ch.gpitteloud.tree;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Stack;
 
 /**
  * Iterator for traversing a tree, that returns the children of each node before that node.
  * <p>
+ * The iterator maintains an explicit stack of frames, each frame holding a node, its children and the position of the
+ * next child to explore. The children of each node are resolved once, and the parent of a node is never resolved:
+ * traversing a tree of n nodes is linear in n, whatever its depth.
+ * <p>
  * Does not implement {@link TreeIterator} : cannot skip the children of a node since the children are already
  * traversed. {@link #remove()} is not supported for the same reasons.
  *
@@ -15,79 +20,40 @@ import java.util.Stack;
  */
 public class ParentAfterChildrenIterator<N> implements Iterator<N> {
 
-    private final ParentChildResolver<N> resolver;
-    private DefaultTreeIterator<N> iterator;
-    private final int rootDepth;
-    private final Stack<N> stack = new Stack<>();
-    private N nextNode;
+    private final ChildResolver<N> resolver;
+    private final List<NodeFrame<N>> frames = new ArrayList<>();
 
-    public ParentAfterChildrenIterator(ParentChildResolver<N> resolver, N first) {
+    public ParentAfterChildrenIterator(ChildResolver<N> resolver, N first) {
+        assert resolver != null : "Invalid null resolver";
         this.resolver = resolver;
-        iterator = new DefaultTreeIterator<>(ExplorationMode.DFS, first, resolver);
-        rootDepth = first == null ? 0 : getDepth(first);
+        if (first != null) {
+            pushFrame(first);
+        }
     }
 
     public boolean hasNext() {
-        return iterator.hasNext() || !stack.isEmpty();
+        return !frames.isEmpty();
     }
 
     public N next() {
-        initNextNodeFirstTime();
-
-        while (getNextNodeRelativeDepth() > getStackIndex()) {
-            stack.push(nextNode);
-            moveNextNode();
+        if (frames.isEmpty()) {
+            throw new NoSuchElementException();
         }
-
-        if (getNextNodeRelativeDepth() == getStackIndex()) {
-            if (stack.isEmpty()) {
-                throw new NoSuchElementException();
+        while (true) {
+            NodeFrame<N> top = frames.get(frames.size() - 1);
+            if (top.hasNextChild()) {
+                // go down to the next unexplored child
+                pushFrame(top.nextChild());
+            } else {
+                // all children were returned: return the node itself
+                frames.remove(frames.size() - 1);
+                return top.node;
             }
-            N result = stack.pop();
-            stack.push(nextNode);
-            moveNextNode();
-            return result;
-        }
-
-        if (getNextNodeRelativeDepth() < getStackIndex()) {
-            return stack.pop();
-        }
-        // we should not get there
-        throw new NoSuchElementException();
-    }
-
-    private void initNextNodeFirstTime() {
-        if (nextNode == null && iterator.hasNext()) {
-            nextNode = iterator.next();
-        }
-    }
-
-    private void moveNextNode() {
-        nextNode = iterator.hasNext() ? iterator.next() : null;
-    }
-
-    private int getStackIndex() {
-        return stack.size() - 1;
-    }
-
-    /**
-     * Return the depth of this node.
-     *
-     * @param node a node
-     * @return -1 for a null node, 0 for the root node, > 0 for other nodes
-     */
-    private int getDepth(N node) {
-        int depth = -1;
-        N n = node;
-        while (n != null) {
-            n = resolver.getParent(n);
-            depth++;
         }
-        return depth;
     }
 
-    private int getNextNodeRelativeDepth() {
-        return getDepth(nextNode) - rootDepth;
+    private void pushFrame(N node) {
+        frames.add(new NodeFrame<>(node, resolver.getChildren(node)));
     }
 
 }
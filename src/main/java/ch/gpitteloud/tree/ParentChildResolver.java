@@ -1,24 +1,16 @@
 package ch.gpitteloud.tree;
 
-import java.util.List;
-
 /**
  * A parent-child resolver is an abstraction over parent and children resolution of a tree node.
+ * <p>
+ * Most traversals only need the children of the nodes (see {@link ChildResolver}); the parent is required by the
+ * operations that start in the middle of a tree, such as the splitting of a {@link DfsTreeSpliterator}.
  *
  * @author Gaëtan Pitteloud
  * @param <N>
  *            The node type
  */
-public interface ParentChildResolver<N> {
-
-    /**
-     * Return the children of the node
-     *
-     * @param node
-     *            a node, not null
-     * @return the children of that node, never null
-     */
-    List<N> getChildren(N node);
+public interface ParentChildResolver<N> extends ChildResolver<N> {
 
     /**
      * Return the parent of the node
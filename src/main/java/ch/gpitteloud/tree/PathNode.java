@@ -0,0 +1,54 @@
+package ch.gpitteloud.tree;
+
+import java.util.List;
+
+/**
+ * An element of an ancestor path, linked to the path of its parent. Paths of sibling nodes share the path of their
+ * parent, so that the ancestors of all the nodes waiting to be explored are kept in memory only once.
+ * <p>
+ * Used by the cycle detectors, that only track the ancestors of the nodes being explored: a node that is one of its own
+ * ancestors means that the tree contains a cycle.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N> The node type
+ */
+final class PathNode<N> {
+
+    final N node;
+    final PathNode<N> parent;
+
+    PathNode(N node, PathNode<N> parent) {
+        this.node = node;
+        this.parent = parent;
+    }
+
+    /**
+     * Check that a node is not part of an ancestor path, comparing the nodes by identity.
+     *
+     * @param path the ancestor path, null if the node has no ancestors
+     * @param node the node
+     * @throws CycleInTreeException if the node is found in the path
+     */
+    static <N> void checkNotInPath(PathNode<N> path, N node) {
+        for (PathNode<N> ancestor = path; ancestor != null; ancestor = ancestor.parent) {
+            if (ancestor.node == node) {
+                throw new CycleInTreeException(node);
+            }
+        }
+    }
+
+    /**
+     * Check that a node is not part of a stack of frames, comparing the nodes by identity.
+     *
+     * @param frames the frames of the ancestors of the node
+     * @param node the node
+     * @throws CycleInTreeException if the node is found in the frames
+     */
+    static <N> void checkNotInFrames(List<NodeFrame<N>> frames, N node) {
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            if (frames.get(i).node == node) {
+                throw new CycleInTreeException(node);
+            }
+        }
+    }
+}
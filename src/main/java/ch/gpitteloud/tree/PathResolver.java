@@ -0,0 +1,215 @@
+package ch.gpitteloud.tree;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A resolver of the files of a file system, listing the directories with {@link Files#newDirectoryStream(Path)}.
+ * <p>
+ * The {@link BasicFileAttributes} of each entry are read once, when the entry is listed, and kept until the entry is
+ * visited (its attributes are requested), whatever the number of entries of the listed directories that are not
+ * visited yet: filtering the entries on their attributes (see {@link #getAttributes(Path)}) and resolving their
+ * children later does not read the attributes again. The attributes of the visited entries are then kept in a bounded
+ * cache (the oldest ones are evicted). The attributes of the entries that are never visited (a walk that stops early)
+ * are kept until {@link #clearCache()}.
+ * <p>
+ * When symbolic links are followed, a link to one of its own ancestor directories is not explored (its children are
+ * empty), as with {@link Files#walk(Path, java.nio.file.FileVisitOption...)}: directories are compared with their
+ * {@link BasicFileAttributes#fileKey() file key}, or with {@link Files#isSameFile(Path, Path)} when the file system
+ * has no file keys.
+ * <p>
+ * The resolver is thread-safe, so that the files may be walked in parallel (see {@link #walk(Path, boolean)}). I/O
+ * errors are thrown as {@link UncheckedIOException}.
+ *
+ * @author Gaëtan Pitteloud
+ */
+public class PathResolver implements ParentChildResolver<Path> {
+
+    private static final Logger logger = Logger.getLogger(PathResolver.class);
+
+    /** Default maximal number of cached attributes of visited entries */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private static final LinkOption[] NOFOLLOW_LINKS = { LinkOption.NOFOLLOW_LINKS };
+    private static final LinkOption[] FOLLOW_LINKS = {};
+
+    private final boolean followLinks;
+    private final int cacheSize;
+    // the attributes read when listing the directories, removed when the entries are visited
+    private final Map<Path, BasicFileAttributes> listedAttributes = new ConcurrentHashMap<>();
+    // the attributes of the visited entries, and their insertion order for the eviction
+    private final Map<Path, BasicFileAttributes> visitedAttributes = new ConcurrentHashMap<>();
+    private final Queue<Path> visitedOrder = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create a resolver that does not follow symbolic links, with the default cache size.
+     */
+    public PathResolver() {
+        this(false, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Create a resolver.
+     *
+     * @param followLinks true to explore the directories that symbolic links point to
+     * @param cacheSize the maximal number of cached attributes of visited entries; the attributes of the listed
+     *            entries that are not visited yet are not counted
+     */
+    public PathResolver(boolean followLinks, int cacheSize) {
+        assert cacheSize > 0 : "Invalid cacheSize " + cacheSize;
+        this.followLinks = followLinks;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Return the entries of a directory, in the order of the directory stream, reading the attributes of each entry.
+     *
+     * @param node a path, not null
+     * @return the entries of that path if it is a directory, an empty list otherwise
+     */
+    @Override
+    public List<Path> getChildren(Path node) {
+        assert node != null : "Invalid null node";
+        BasicFileAttributes attributes = getAttributes(node);
+        if (!attributes.isDirectory()) {
+            return Collections.emptyList();
+        }
+        if (followLinks && wouldLoop(node, attributes)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Not exploring " + node + ": it is a link to one of its ancestors");
+            }
+            return Collections.emptyList();
+        }
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(node)) {
+            for (Path entry : entries) {
+                children.add(entry);
+                // a directory listed again does not read them again
+                if (!listedAttributes.containsKey(entry) && !visitedAttributes.containsKey(entry)) {
+                    listedAttributes.put(entry, readAttributes(entry));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return children;
+    }
+
+    @Override
+    public Path getParent(Path node) {
+        return node.getParent();
+    }
+
+    /**
+     * Return the attributes of a path, from the cache if they were read when its parent was listed.
+     *
+     * @param node a path, not null
+     * @return the attributes of the file, or of the file a symbolic link points to if links are followed
+     */
+    public BasicFileAttributes getAttributes(Path node) {
+        BasicFileAttributes attributes = listedAttributes.remove(node);
+        if (attributes == null) {
+            attributes = visitedAttributes.get(node);
+            if (attributes != null) {
+                return attributes;
+            }
+            try {
+                attributes = readAttributes(node);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        cacheVisited(node, attributes);
+        return attributes;
+    }
+
+    /**
+     * Forget all the cached attributes, including the ones of the listed entries that are not visited yet.
+     */
+    public void clearCache() {
+        listedAttributes.clear();
+        visitedAttributes.clear();
+        visitedOrder.clear();
+    }
+
+    /**
+     * Walk the files of a tree, in DFS order.
+     *
+     * @param root the root of the walk
+     * @param parallel true for a parallel stream
+     * @return a stream of root and all files below root
+     */
+    public Stream<Path> walk(Path root, boolean parallel) {
+        return StreamSupport.stream(new DfsTreeSpliterator<>(root, this), parallel);
+    }
+
+    /**
+     * @return true if the symbolic links are followed
+     */
+    public boolean isFollowLinks() {
+        return followLinks;
+    }
+
+    private BasicFileAttributes readAttributes(Path path) throws IOException {
+        if (!followLinks) {
+            return Files.readAttributes(path, BasicFileAttributes.class, NOFOLLOW_LINKS);
+        }
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, FOLLOW_LINKS);
+        } catch (IOException e) {
+            // broken link: the link itself
+            return Files.readAttributes(path, BasicFileAttributes.class, NOFOLLOW_LINKS);
+        }
+    }
+
+    private void cacheVisited(Path path, BasicFileAttributes attributes) {
+        if (visitedAttributes.put(path, attributes) == null) {
+            visitedOrder.add(path);
+            while (visitedAttributes.size() > cacheSize) {
+                Path eldest = visitedOrder.poll();
+                if (eldest == null) {
+                    break;
+                }
+                visitedAttributes.remove(eldest);
+            }
+        }
+    }
+
+    /**
+     * Answer whether a directory is one of its own ancestors, through symbolic links
+     */
+    private boolean wouldLoop(Path dir, BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        for (Path ancestor = dir.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+            try {
+                if (key != null) {
+                    if (key.equals(getAttributes(ancestor).fileKey())) {
+                        return true;
+                    }
+                } else if (Files.isSameFile(dir, ancestor)) {
+                    return true;
+                }
+            } catch (IOException | UncheckedIOException e) {
+                // an ancestor that cannot be read cannot be a loop
+                return false;
+            }
+        }
+        return false;
+    }
+}
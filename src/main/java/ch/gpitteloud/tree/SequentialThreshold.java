@@ -0,0 +1,45 @@
+package ch.gpitteloud.tree;
+
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Internal class that decides whether a subtree is small enough to be handled sequentially by a fork/join task instead
+ * of forking tasks for its children.
+ * <p>
+ * When the resolver is a {@link SubtreeSizeResolver}, a subtree is handled sequentially when its size does not exceed
+ * the threshold. Otherwise, the subtree sizes are unknown and a subtree is handled sequentially when the current worker
+ * already has enough queued tasks that other workers may steal.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N> the node type
+ */
+class SequentialThreshold<N> {
+
+    static final long DEFAULT_THRESHOLD = 1024;
+
+    // number of queued tasks above which the current worker stops forking, when subtree sizes are unknown
+    private static final int SURPLUS_QUEUED_TASKS = 3;
+
+    // null if the resolver does not know subtree sizes
+    private final SubtreeSizeResolver<N> sizeResolver;
+    private final long threshold;
+
+    SequentialThreshold(ChildResolver<N> resolver, long threshold) {
+        assert threshold >= 0 : "Invalid negative threshold";
+        this.sizeResolver = resolver instanceof SubtreeSizeResolver ? (SubtreeSizeResolver<N>) resolver : null;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Answer whether the subtree rooted at the node is to be handled sequentially.
+     *
+     * @param node the root of the subtree, not null
+     * @return true if the subtree is not worth forking tasks
+     */
+    boolean isSequential(N node) {
+        if (sizeResolver != null) {
+            return sizeResolver.getSubtreeSize(node) <= threshold;
+        }
+        return ForkJoinTask.getSurplusQueuedTaskCount() > SURPLUS_QUEUED_TASKS;
+    }
+}
@@ -8,7 +8,12 @@ import java.util.List;
 /**
  * Internal stateful class used to run {@link TreeProcessor#processNodes(Object, AroundChildrenNodeCallback)}.
  * <p>
- * Maintains a stack of nodes while iterating in DFS, on which beforeChildren and afterChildren are invoked
+ * Maintains an explicit stack of frames while exploring the tree in DFS: a frame is pushed when entering a node whose
+ * children are to be processed (beforeChildren is invoked), and popped once all its children were processed
+ * (afterChildren is invoked). The children of each node are resolved at most once, and parents are never resolved.
+ * <p>
+ * When cycles are to be detected, the frames are the ancestors of the node being entered: the node must not be one of
+ * them, nor one of the ancestors of the root node, if any.
  *
  * @author Gaëtan Pitteloud
  * @param <N> the node type
@@ -17,101 +22,82 @@ class StatefulNodeCallbackProcessor<N> {
 
     private static final Logger logger = Logger.getLogger(StatefulNodeCallbackProcessor.class);
 
-    private final ParentChildResolver<N> resolver;
+    private final N root;
+    private final ChildResolver<N> resolver;
     private final AroundChildrenNodeCallback<N> callback;
+    private final boolean detectCycles;
+    private final PathNode<N> rootAncestors;
 
-    private final List<N> stackOfCallbackNode = new ArrayList<>();
-    private final int rootDepth;
-    private final TreeIterator<N> treeIterator;
+    private final List<NodeFrame<N>> frames = new ArrayList<>();
 
-    // the stack index of the node on which the before/afterChildren callback methods are invoked
-    private int callbackNodeStackIndex = -1;
+    public StatefulNodeCallbackProcessor(N root, ChildResolver<N> resolver, AroundChildrenNodeCallback<N> callback) {
+        this(root, resolver, callback, false, null);
+    }
 
-    public StatefulNodeCallbackProcessor(N root, ParentChildResolver<N> resolver, AroundChildrenNodeCallback<N> callback) {
+    /**
+     * @param root the root node
+     * @param resolver the resolver
+     * @param callback the callback
+     * @param detectCycles true to throw a {@link CycleInTreeException} when a node is one of its own ancestors
+     * @param rootAncestors the ancestors of the root node, when the root node is the root of a subtree that is
+     *            processed separately; null otherwise
+     */
+    StatefulNodeCallbackProcessor(N root, ChildResolver<N> resolver, AroundChildrenNodeCallback<N> callback,
+            boolean detectCycles, PathNode<N> rootAncestors) {
         assert callback != null : "Invalid null callback";
+        this.root = root;
         this.resolver = resolver;
         this.callback = callback;
-        rootDepth = getDepth(root);
-        treeIterator = new DefaultTreeIterator<>(ExplorationMode.DFS, root, resolver);
+        this.detectCycles = detectCycles;
+        this.rootAncestors = rootAncestors;
     }
 
     public void processNodes() {
-        while (treeIterator.hasNext()) {
-            final N currentNode = treeIterator.next();
-            final int depthOfCurrentNode = getRelativeDepth(currentNode);
-
-            // down at least 1 level
-            popCallbackNodesAndRunAfterChildren(depthOfCurrentNode);
-
-            if (depthOfCurrentNode == callbackNodeStackIndex) {
-                // same level
-                setCurrentNodeAsCallbackNode(currentNode);
+        if (root == null) {
+            return;
+        }
+        enterNode(root);
+        while (!frames.isEmpty()) {
+            NodeFrame<N> top = frames.get(frames.size() - 1);
+            if (top.hasNextChild()) {
+                enterNode(top.nextChild());
             } else {
-                // up 1 level
-                pushCallbackNodeAndRunBeforeChildren(currentNode);
+                frames.remove(frames.size() - 1);
+                exitNode(top.node);
             }
-
-            processCurrentNode(currentNode);
         }
-        popCallbackNodesAndRunAfterChildren(0);
     }
 
     /**
-     * @param downTo The lower limit index of popped nodes
+     * Process a node, then if its children are to be processed, invoke beforeChildren and push a frame for them.
+     *
+     * @param node the node
      */
-    private void popCallbackNodesAndRunAfterChildren(int downTo) {
-        while (callbackNodeStackIndex > downTo) {
-            N node = stackOfCallbackNode.remove(--callbackNodeStackIndex);
-            callback.afterChildren(node);
-            if (logger.isDebugEnabled()) {
-                logger.debug("Invoked after children on " + node);
-            }
+    private void enterNode(final N node) {
+        if (detectCycles) {
+            PathNode.checkNotInFrames(frames, node);
+            PathNode.checkNotInPath(rootAncestors, node);
         }
-    }
-
-    private void setCurrentNodeAsCallbackNode(final N currentlyProcessedNode) {
-        stackOfCallbackNode.set(callbackNodeStackIndex, currentlyProcessedNode);
-    }
-
-    private void pushCallbackNodeAndRunBeforeChildren(final N currentlyProcessedNode) {
-        stackOfCallbackNode.add(currentlyProcessedNode);
-        if (callbackNodeStackIndex >= 0) {
-            N node = stackOfCallbackNode.get(callbackNodeStackIndex);
-            callback.beforeChildren(node);
-            if (logger.isDebugEnabled()) {
-                logger.debug("Invoked before children on " + node);
-            }
-        }
-        callbackNodeStackIndex++;
-    }
-
-    private void processCurrentNode(final N currentNode) {
-        boolean processChildren = callback.processNode(currentNode);
+        boolean processChildren = callback.processNode(node);
         if (logger.isDebugEnabled()) {
-            logger.debug("Invoked process on " + currentNode + ", skip children ? " + !processChildren);
+            logger.debug("Invoked process on " + node + ", skip children ? " + !processChildren);
         }
-        if (!processChildren) {
-            treeIterator.skipChildren();
+        if (processChildren) {
+            List<N> children = resolver.getChildren(node);
+            if (!children.isEmpty()) {
+                callback.beforeChildren(node);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Invoked before children on " + node);
+                }
+                frames.add(new NodeFrame<>(node, children));
+            }
         }
     }
 
-    /**
-     * Return the depth of this node.
-     *
-     * @param node a node
-     * @return -1 for a null node, 0 for the root node, > 0 for other nodes
-     */
-    private int getDepth(N node) {
-        int depth = -1;
-        N n = node;
-        while (n != null) {
-            n = resolver.getParent(n);
-            depth++;
+    private void exitNode(final N node) {
+        callback.afterChildren(node);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Invoked after children on " + node);
         }
-        return depth;
-    }
-
-    private int getRelativeDepth(N node) {
-        return getDepth(node) - rootDepth;
     }
 }
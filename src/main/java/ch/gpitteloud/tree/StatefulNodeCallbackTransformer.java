@@ -18,23 +18,43 @@ class StatefulNodeCallbackTransformer<S, T> {
 
     private static final Logger logger = Logger.getLogger(StatefulNodeCallbackTransformer.class);
 
-    private final ParentChildResolver<S> sourceResolver;
+    private final ChildResolver<S> sourceResolver;
     private final S rootSource;
     private final MultiNodesCallbackHandler<S, T> callback;
 
     private final IdentityHashMap<S, List<T>> parentsMap;
-    private final TreeIterator<S> sourceItr;
+    private final DefaultTreeIterator<S> sourceItr;
     private final boolean createTargetTreeRoot;
 
-    StatefulNodeCallbackTransformer(ParentChildResolver<S> sourceResolver, S rootSource, T rootTarget,
+    StatefulNodeCallbackTransformer(ChildResolver<S> sourceResolver, S rootSource, T rootTarget,
             MultiNodesCallbackHandler<S, T> callback) {
+        this(sourceResolver, rootSource, Collections.singletonList(rootTarget), rootTarget == null, callback);
+    }
+
+    /**
+     * Construct a transformer for a source subtree whose root is already mapped to target nodes: the callback is not
+     * invoked with the root source node, and its children are handled with each of the root targets as parent.
+     *
+     * @param sourceResolver the source resolver
+     * @param rootSource the root of the source subtree
+     * @param rootTargets the target nodes mapped to the root source node, not empty
+     * @param callback the callback
+     */
+    StatefulNodeCallbackTransformer(ChildResolver<S> sourceResolver, S rootSource, List<T> rootTargets,
+            MultiNodesCallbackHandler<S, T> callback) {
+        this(sourceResolver, rootSource, rootTargets, false, callback);
+        assert !rootTargets.isEmpty() : "Invalid empty rootTargets";
+    }
+
+    private StatefulNodeCallbackTransformer(ChildResolver<S> sourceResolver, S rootSource, List<T> rootTargets,
+            boolean createTargetTreeRoot, MultiNodesCallbackHandler<S, T> callback) {
         this.sourceResolver = sourceResolver;
         this.rootSource = rootSource;
-        createTargetTreeRoot = rootTarget == null;
+        this.createTargetTreeRoot = createTargetTreeRoot;
         assert callback != null : "The callback must not be null";
         this.callback = callback;
         parentsMap = new IdentityHashMap<>();
-        parentsMap.put(rootSource, Collections.singletonList(rootTarget));
+        parentsMap.put(rootSource, rootTargets);
         // first iteration: the parent of the root source node is null; its (unique) equivalent target node is also null
         parentsMap.put(null, Collections.singletonList(null));
 
@@ -47,14 +67,13 @@ class StatefulNodeCallbackTransformer<S, T> {
             if (logger.isDebugEnabled()) {
                 logger.debug("Handling source node " + source);
             }
-            // maybe rootSource is not the root of the tree, but a standard node with a non-null parent
-            // in this case, we must ignore its parent, as we are relative to rootSource
-            S sourceParent = isRoot(source) ? null : sourceResolver.getParent(source);
+            // the parent is tracked by the iterator: rootSource has no parent, even if it is not the root of the tree
+            S sourceParent = sourceItr.currentParent();
             List<T> targetParents = parentsMap.get(sourceParent);
 
             // if we're on the source node, only invoke the callback when we must create the target root node
             if (!isRoot(source) || createTargetTreeRoot) {
-                List<T> targets = invokeCallback(source, targetParents);
+                List<T> targets = invokeCallback(callback, source, targetParents);
                 handleCallbackResult(source, targets);
             }
         }
@@ -68,11 +87,12 @@ class StatefulNodeCallbackTransformer<S, T> {
      * Invoke the callback with the same source node, and every parent target node that was previously mapped to the
      * parent of the source node (i.e. targetParents).
      *
+     * @param callback the callback
      * @param source the current source node
      * @param targetParents the parents of the target nodes
      * @return all target nodes resulting in the callback invocation(s)
      */
-    private List<T> invokeCallback(S source, List<T> targetParents) {
+    static <S, T> List<T> invokeCallback(MultiNodesCallbackHandler<S, T> callback, S source, List<T> targetParents) {
         List<T> allTargetNodes = new LinkedList<>();
         if (logger.isDebugEnabled()) {
             logger.debug("Invoking the callback on all corresponding target parent nodes: " + targetParents);
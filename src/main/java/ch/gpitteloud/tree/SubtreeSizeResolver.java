@@ -0,0 +1,28 @@
+package ch.gpitteloud.tree;
+
+/**
+ * An optional extension of {@link ParentChildResolver} for resolvers that are able to tell the number of nodes in the
+ * subtree rooted at a node, without the subtree being traversed by the caller.
+ * <p>
+ * Sizes are used by {@link DfsTreeSpliterator} to report its size and to split at size-balanced points.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N> The node type
+ */
+public interface SubtreeSizeResolver<N> extends ParentChildResolver<N> {
+
+    /**
+     * Return the number of nodes of the subtree rooted at the node, the node included.
+     *
+     * @param node a node, not null
+     * @return the size of the subtree, at least 1
+     */
+    long getSubtreeSize(N node);
+
+    /**
+     * Answer whether the sizes returned by {@link #getSubtreeSize(Object)} are exact counts or estimates.
+     *
+     * @return true if sizes are exact, false if they are estimates
+     */
+    boolean isSubtreeSizeExact();
+}
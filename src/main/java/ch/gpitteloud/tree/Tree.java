@@ -3,22 +3,37 @@
  */
 package ch.gpitteloud.tree;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.Spliterators;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
-import static ch.gpitteloud.tree.ExplorationMode.DFS;
-import static java.util.Spliterator.*;
-
 /**
  * A collection of {@link TreeNode}s, linked with parent/children relationships. A tree is iterable over its nodes and
  * can remember one node tagged as the current node.
  * <p>
  * The root node of a tree cannot be removed from the tree, thus it cannot be added to another tree. A tree contains at
  * least one node, namely the root node.
+ * <p>
+ * The tree maintains an ancestry index, that numbers the nodes in preorder and in postorder: ancestor checks
+ * ({@link #isAncestor(TreeNode, TreeNode)}), document order comparisons ({@link #documentOrder()}) and subtree scans
+ * ({@link #getSubtreeNodes(TreeNode)}) are answered in constant time. The index is rebuilt lazily, by the first query
+ * following a structural change of this tree; the changes of other trees do not invalidate it. The index is an
+ * immutable snapshot published through a volatile field: these queries may be run by several threads at once, as long
+ * as the tree is not modified meanwhile.
+ * <p>
+ * Nodes can be looked up by a key through {@link NodeIndex indexes}, that are updated each time nodes are attached to
+ * or detached from the tree.
  * @author Gaëtan Pitteloud
  * @see TreeNode
  * @param <N> The node type
@@ -30,6 +45,13 @@ public class Tree<N extends TreeNode<N>> implements Iterable<N>, Serializable {
     private final N root;
     private N currentNode;
 
+    // incremented each time nodes are attached to or detached from this tree
+    private transient long structureVersion;
+    // ancestry index, valid while its version equals structureVersion
+    private transient volatile AncestryIndex<N> ancestryIndex;
+
+    private transient List<NodeIndex<?, N>> nodeIndexes = new ArrayList<>();
+
     /**
      * Construct a tree with a root. The root must not be part of another tree. The root cannot be removed from the tree
      * once set (thus cannot be part of another tree).
@@ -41,6 +63,7 @@ public class Tree<N extends TreeNode<N>> implements Iterable<N>, Serializable {
         assert !root.isRoot() : "The node is already the root of another tree";
         assert root.getParent() == null : "The root is still part of another tree";
         root.setRoot();
+        root.setTree(this);
         this.root = root;
     }
 
@@ -116,21 +139,82 @@ public class Tree<N extends TreeNode<N>> implements Iterable<N>, Serializable {
     }
 
     /**
-     * Answer whether this node is in this tree.
+     * Answer whether this node is in this tree, by comparing its {@link TreeNode#getRootNode() root node} with the root
+     * of this tree.
      *
      * @param node a node
      * @return true if the node is not null and is equal to a child in the tree, false otherwise
      */
     public final boolean contains(N node) {
-        if (node == null) {
-            return false;
+        return node != null && node.getRootNode() == root;
+    }
+
+    /**
+     * Create an index of the nodes of this tree by a key. All the nodes are indexed, then the index is updated each
+     * time nodes are attached to or detached from this tree.
+     *
+     * @param keyExtractor the function returning the key of a node, not null
+     * @return the index
+     * @see NodeIndex
+     */
+    public final <K> NodeIndex<K, N> createIndex(Function<? super N, ? extends K> keyExtractor) {
+        NodeIndex<K, N> index = new NodeIndex<>(this, keyExtractor);
+        index.rebuild();
+        nodeIndexes.add(index);
+        return index;
+    }
+
+    /**
+     * Stop updating an index, that should no longer be used.
+     *
+     * @param index an index created by this tree
+     * @return true if the index was updated by this tree
+     */
+    public final boolean dropIndex(NodeIndex<?, N> index) {
+        return nodeIndexes.remove(index);
+    }
+
+    /**
+     * Invalidate the ancestry index, invoked when a node is attached to or detached from one of the nodes of this tree
+     */
+    void structureChanged() {
+        structureVersion++;
+    }
+
+    /**
+     * Add the nodes of a subtree to the indexes, invoked when it was attached to one of the nodes of this tree
+     */
+    void subtreeAttached(N node) {
+        if (!nodeIndexes.isEmpty()) {
+            List<N> nodes = subtreeNodes(node);
+            for (NodeIndex<?, N> index : nodeIndexes) {
+                index.add(nodes);
+            }
         }
-        for (N n : this) {
-            if (n.equals(node)) {
-                return true;
+    }
+
+    /**
+     * Remove the nodes of a subtree from the indexes, invoked when it was detached from one of the nodes of this tree
+     */
+    void subtreeDetached(N node) {
+        if (!nodeIndexes.isEmpty()) {
+            List<N> nodes = subtreeNodes(node);
+            for (NodeIndex<?, N> index : nodeIndexes) {
+                index.remove(nodes);
             }
         }
-        return false;
+    }
+
+    /**
+     * @return the nodes of the subtree rooted at a node, the node included, without recursion
+     */
+    static <N extends TreeNode<N>> List<N> subtreeNodes(N node) {
+        List<N> nodes = new ArrayList<>();
+        nodes.add(node);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.addAll(nodes.get(i).getChildren());
+        }
+        return nodes;
     }
 
     /**
@@ -155,6 +239,86 @@ public class Tree<N extends TreeNode<N>> implements Iterable<N>, Serializable {
         }
     }
 
+    /**
+     * Answer whether a node is a proper ancestor of another node, in constant time once the ancestry index is built.
+     *
+     * @param ancestor a node of this tree
+     * @param node a node of this tree
+     * @return true if ancestor is the parent of node, or the parent of its parent, and so on
+     * @throws IllegalArgumentException if a node is not part of this tree
+     */
+    public final boolean isAncestor(N ancestor, N node) {
+        AncestryIndex<N> index = getAncestryIndex();
+        int a = index.getPreorder(ancestor);
+        int n = index.getPreorder(node);
+        return a < n && n < index.subtreeEnds[a];
+    }
+
+    /**
+     * The position of a node in document order (DFS preorder), the root being at position 0.
+     *
+     * @param node a node of this tree
+     * @return the preorder number of the node
+     * @throws IllegalArgumentException if the node is not part of this tree
+     */
+    public final int getDocumentIndex(N node) {
+        return getAncestryIndex().getPreorder(node);
+    }
+
+    /**
+     * Return a comparator of the nodes of this tree in document order (DFS preorder): a node is before its children,
+     * and before its next siblings.
+     *
+     * @return the comparator, that throws IllegalArgumentException if a node is not part of this tree
+     */
+    public final Comparator<N> documentOrder() {
+        return (n1, n2) -> Integer.compare(getDocumentIndex(n1), getDocumentIndex(n2));
+    }
+
+    /**
+     * Return the nodes of the subtree rooted at a node, in document order, the node included. The returned list is a
+     * view of the ancestry index, that must not be used after the structure of the tree was modified.
+     *
+     * @param node a node of this tree
+     * @return the unmodifiable list of the nodes of the subtree
+     * @throws IllegalArgumentException if the node is not part of this tree
+     */
+    public final List<N> getSubtreeNodes(N node) {
+        AncestryIndex<N> index = getAncestryIndex();
+        Object[] nodes = index.preorderNodes;
+        int from = index.getPreorder(node);
+        int size = index.subtreeEnds[from] - from;
+        return new AbstractList<N>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public N get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                }
+                return (N) nodes[from + index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Return the ancestry index, built again if the structure changed since it was built. Concurrent readers may each
+     * build an index: they are equal, and the last one is kept.
+     */
+    private AncestryIndex<N> getAncestryIndex() {
+        AncestryIndex<N> index = ancestryIndex;
+        long version = structureVersion;
+        if (index == null || index.version != version) {
+            index = new AncestryIndex<>(root, version);
+            ancestryIndex = index;
+        }
+        return index;
+    }
+
     /**
      * Process all nodes of this tree with the specified callback.
      *
@@ -170,8 +334,18 @@ public class Tree<N extends TreeNode<N>> implements Iterable<N>, Serializable {
      * @return stream over the nodes
      */
     public Stream<N> bfsStream() {
-        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(DFS), ORDERED | DISTINCT | NONNULL),
-                false);
+        return bfsStream(false);
+    }
+
+    /**
+     * Return a ordered stream over the nodes of this tree, in BFS. A parallel stream shares each level of the tree
+     * between workers.
+     * @param parallel true to create a parallel stream, false to create a sequential stream
+     * @return stream over the nodes
+     * @see BfsTreeSpliterator
+     */
+    public Stream<N> bfsStream(boolean parallel) {
+        return StreamSupport.stream(new BfsTreeSpliterator<>(root, new TreeNode.Resolver<>()), parallel);
     }
 
     /**
@@ -183,6 +357,63 @@ public class Tree<N extends TreeNode<N>> implements Iterable<N>, Serializable {
         return StreamSupport.stream(new DfsTreeSpliterator<>(root, new TreeNode.Resolver<>()), parallel);
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        nodeIndexes = new ArrayList<>();
+        root.setTree(this);
+    }
+
+    /**
+     * The nodes of the tree numbered in preorder, and the end (exclusive) of the subtree of each node: a node is an
+     * ancestor of the nodes whose number is between its own and the end of its subtree. Immutable once built.
+     */
+    private static final class AncestryIndex<N extends TreeNode<N>> {
+
+        private final long version;
+        private final Object[] preorderNodes;
+        private final int[] subtreeEnds;
+        private final Map<N, Integer> preorders;
+
+        AncestryIndex(N root, long version) {
+            this.version = version;
+            int size = root.getSubtreeSize();
+            preorderNodes = new Object[size];
+            subtreeEnds = new int[size];
+            preorders = new IdentityHashMap<>(size);
+            int preorder = 0;
+            List<NodeFrame<N>> frames = new ArrayList<>();
+
+            preorders.put(root, preorder);
+            preorderNodes[preorder++] = root;
+            frames.add(new NodeFrame<>(root, root.getChildren()));
+            while (!frames.isEmpty()) {
+                NodeFrame<N> top = frames.get(frames.size() - 1);
+                if (top.hasNextChild()) {
+                    N child = top.nextChild();
+                    preorders.put(child, preorder);
+                    preorderNodes[preorder++] = child;
+                    frames.add(new NodeFrame<>(child, child.getChildren()));
+                } else {
+                    frames.remove(frames.size() - 1);
+                    subtreeEnds[preorders.get(top.node)] = preorder;
+                }
+            }
+        }
+
+        /**
+         * @return the preorder number of a node of the tree
+         * @throws IllegalArgumentException if the node is not part of the tree
+         */
+        int getPreorder(N node) {
+            assert node != null : "Invalid null node";
+            Integer preorder = preorders.get(node);
+            if (preorder == null) {
+                throw new IllegalArgumentException("The node '" + node + "' is not part of this tree");
+            }
+            return preorder;
+        }
+    }
+
     /**
      * Return a String representation of this tree, with each node a line, in the same layout as an explorer or the
      * dependency tree of Maven.
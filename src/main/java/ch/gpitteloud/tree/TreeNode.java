@@ -1,9 +1,18 @@
 package ch.gpitteloud.tree;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class represents a node in a {@link Tree}. When inserted into a Tree, a node is assigned a parent, an index
@@ -33,13 +42,26 @@ import java.util.List;
  * </pre></code> When defining a subclass that freezes N, it is mandatory to define the parameter type N as the defined
  * class. If a TreeNode class is defined with another TreeNode class for the N parameter type, an exception is thrown at
  * construction.
+ * <p>
+ * Serializing a node serializes all the nodes connected to it. The structure is written without recursion, in DFS
+ * preorder from the node without parent, as each node followed by its number of children: the depth of the tree is not
+ * limited by the stack size, and neither the parents nor the children's lists are written. On reading, the parent-child
+ * relations are restored directly, without the checks of the children's list. A component is written once per call to
+ * {@link ObjectOutputStream#writeObject(Object)}: nodes of other components, referenced by fields of subclasses, write
+ * their own component. A component written again to the same stream, with or without a
+ * {@link ObjectOutputStream#reset() reset}, is written with its current structure.
  *
  * @author Gaëtan Pitteloud
  * @param <N> The node type
  */
 public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Serializable {
 
-    private static final long serialVersionUID = 5463031337433768912L;
+    private static final long serialVersionUID = -1645185922318773587L;
+
+    // for each stream being written by the thread, the top nodes whose component is written by the outermost call to
+    // writeObject: the other nodes of these components only write their fields
+    private static final ThreadLocal<Map<ObjectOutputStream, Set<TreeNode<?>>>> writingTops = ThreadLocal
+            .withInitial(IdentityHashMap::new);
 
     /**
      * The resolver for TreeNode.
@@ -47,7 +69,7 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
      * @author Gaëtan Pitteloud
      * @param <N> The node type
      */
-    public static class Resolver<N extends TreeNode<N>> implements ParentChildResolver<N> {
+    public static class Resolver<N extends TreeNode<N>> implements SubtreeSizeResolver<N> {
 
         public List<N> getChildren(N node) {
             return node.getChildren();
@@ -57,14 +79,45 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
             return node.getParent();
         }
 
+        public long getSubtreeSize(N node) {
+            return node.getSubtreeSize();
+        }
+
+        public boolean isSubtreeSizeExact() {
+            return true;
+        }
+
     }
 
     private final N self; // == this, but cast to the actual node type
-    private final ChildrenList<N> children;
+    private transient ChildrenList<N> children;
 
     private boolean root;
+    // the tree of which this node is the root, notified when nodes are attached to or detached from it
+    private transient Tree<N> tree;
     private boolean current; // true when this node is set as the current node of its owning tree
-    private N parent;
+    // the number of nodes set as current in the subtree rooted at this node, this node included
+    private int currentCount;
+
+    // the top of the component of this node (its ancestor without parent) and the depth of this node, valid while the
+    // epoch of that top node equals topEpoch
+    private transient TreeNode<N> top;
+    private transient int depth;
+    // volatile, written last and read first, so that concurrent readers of a tree see a consistent top and depth
+    private transient volatile long topEpoch;
+    // for a node without parent: the epoch of its component, changed each time a node of the component is detached,
+    // and when this node is attached
+    private transient long epoch;
+    private transient N parent;
+    private transient int index = -1; // position in the children of parent, maintained by ChildrenList
+
+    // for a node without parent: the number of nodes attached to or detached from one of the nodes of its component
+    private transient long modCount;
+    // cached size of the subtree rooted at this node, valid while subtreeSizeTop is the top of the component of this
+    // node and its modCount equals subtreeSizeVersion
+    private transient int subtreeSize;
+    private transient TreeNode<N> subtreeSizeTop;
+    private transient volatile long subtreeSizeVersion;
 
     /**
      * Only constructor of a TreeNode, to be used by subclasses, but usually not exposed to nodes clients. The current
@@ -118,11 +171,17 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
      * @return node's index
      */
     public final int getIndex() {
-        if (parent == null) {
-            return -1;
-        }
-        //noinspection SuspiciousMethodCalls
-        return parent.getChildren().indexOf(this);
+        return parent == null ? -1 : index;
+    }
+
+    /**
+     * Set the position of this node in the children of its parent. Invoked by callback from ChildrenList each time the
+     * position changes.
+     *
+     * @param index the index
+     */
+    void setIndex(int index) {
+        this.index = index;
     }
 
     /**
@@ -135,19 +194,12 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
      * @return the path
      */
     public final int[] getPath() {
+        int[] path = new int[getDepth()];
         N node = self;
-        ArrayList<Integer> indices = new ArrayList<>();
-        while (node.getParent() != null) {
-            indices.add(node.getParent().getChildren().indexOf(node));
+        for (int i = path.length - 1; i >= 0; i--) {
+            path[i] = node.getIndex();
             node = node.getParent();
         }
-        int size = indices.size();
-        int[] path = new int[size];
-        int i = size;
-        for (Integer index : indices) {
-            path[--i] = index;
-        }
-
         return path;
     }
 
@@ -161,6 +213,21 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
         return children.add(child);
     }
 
+    /**
+     * Replace all the children of this node with the specified nodes, in this order. The nodes that were already
+     * children of this node remain connected, the new ones are connected, and the previous children that are not in
+     * the collection are disconnected. Either all the children are replaced, or nothing is changed.
+     *
+     * @param newChildren the new children, without null elements nor duplicates
+     * @throws IllegalStateException if a new child already has another parent, or a removed child has the current
+     *             node of the tree in its subtree
+     * @throws IllegalArgumentException if a node is null, specified twice or cannot be added
+     */
+    public final void setChildren(Collection<? extends N> newChildren) {
+        assert newChildren != null : "Invalid null children";
+        children.setAll(newChildren);
+    }
+
     /**
      * Return the child at the specified position. Shortcut for <code>getChildren().get(pos)</code>
      *
@@ -183,10 +250,7 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
      */
     void setParent(N parent) {
         if (parent == null) {
-            if (hasCurrentNodeInChildren()) {
-                throw new IllegalStateException("The node '" + this
-                        + "' cannot be detached from its parent because it is the current node of its owning tree");
-            }
+            checkCanDetach();
         } else {
             if (root) {
                 throw new IllegalStateException("The root node of a tree cannot be added to another tree");
@@ -196,7 +260,44 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
                         + this.parent + "')");
             }
         }
-        this.parent = parent;
+        changeParent(parent);
+    }
+
+    private void checkCanDetach() {
+        if (hasCurrentNodeInChildren()) {
+            throw new IllegalStateException("The node '" + this
+                    + "' cannot be detached from its parent because it is the current node of its owning tree");
+        }
+    }
+
+    /**
+     * Detach children of this node, all or none: if a node cannot be detached, the nodes already detached are attached
+     * again. The epoch of the component of this node is changed once for all the nodes, so that the remaining
+     * children keep their cached top and depth while the others are detached.
+     *
+     * @param children children of this node
+     */
+    @SuppressWarnings("unchecked")
+    void detachChildren(List<N> children) {
+        TreeNode<N> t = getTop();
+        int detached = 0;
+        try {
+            for (TreeNode<N> node : children) {
+                assert node.parent == this : "Invalid node " + node + ", not a child of " + this;
+                node.checkCanDetach(); // may fail if node has a current node in its subtree
+                node.changeParent(null, false);
+                detached++;
+            }
+        } catch (IllegalStateException e) {
+            for (int i = 0; i < detached; i++) {
+                children.get(i).resetParent((N) this);
+            }
+            throw e;
+        } finally {
+            if (detached > 0) {
+                t.componentChanged();
+            }
+        }
     }
 
     /**
@@ -205,21 +306,125 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
      * @param p the parent.
      */
     void resetParent(N p) {
-        this.parent = p;
+        changeParent(p);
     }
 
     /**
-     * Answer whether this node has a child node tagged as current in all its children.
+     * Assign the parent, and change the epochs of the components whose cached depths and tops are no longer valid: the
+     * component this node leaves, and the subtree of this node. The nodes of the component this node joins keep their
+     * depth and their top, so attaching a node does not walk up its new ancestors.
      *
-     * @return true if this has a current node, false otherwise
+     * @param newParent the new parent
      */
-    private boolean hasCurrentNodeInChildren() {
-        for (N n : self) {
-            if (n.isCurrent()) {
-                return true;
+    private void changeParent(N newParent) {
+        changeParent(newParent, true);
+    }
+
+    /**
+     * Assign the parent, see {@link #changeParent(TreeNode)}.
+     *
+     * @param newParent the new parent
+     * @param changeOldTop false if the caller changes the epoch of the component this node leaves, once for many nodes
+     */
+    private void changeParent(N newParent, boolean changeOldTop) {
+        TreeNode<N> oldTop = parent == null || !changeOldTop ? null : getTop();
+        TreeNode<N> newTop = newParent == null ? null : ((TreeNode<N>) newParent).getTop();
+        this.parent = newParent;
+        if (oldTop != null) {
+            oldTop.componentChanged();
+        }
+        // the nodes of the subtree that cached this node as their top
+        epoch++;
+        modCount++;
+        if (newTop != null) {
+            newTop.modCount++;
+            if (newTop.tree != null) {
+                newTop.tree.structureChanged();
             }
         }
-        return false;
+    }
+
+    /**
+     * Change the epoch and the modification count of the component of which this node is the top, once nodes were
+     * detached from it
+     */
+    private void componentChanged() {
+        epoch++;
+        modCount++;
+        if (tree != null) {
+            tree.structureChanged();
+        }
+    }
+
+    /**
+     * Update the node indexes of the tree of this node, if any, once children were attached to or detached from this
+     * node. Invoked by the children's list once the operation is complete, so that a failing key extractor does not
+     * leave the list and the parents of the nodes out of sync.
+     *
+     * @param attached the attached children
+     * @param detached the detached children
+     */
+    void childrenChanged(Collection<N> attached, Collection<N> detached) {
+        Tree<N> t = getTop().tree;
+        if (t != null) {
+            for (N node : detached) {
+                t.subtreeDetached(node);
+            }
+            for (N node : attached) {
+                t.subtreeAttached(node);
+            }
+        }
+    }
+
+    /**
+     * Return the top of the component of this node (the ancestor without parent, this node if it has no parent),
+     * from the cache if the epoch of the component did not change since it was cached.
+     *
+     * @return the top node
+     */
+    private TreeNode<N> getTop() {
+        if (!isTopCached()) {
+            cacheTopAndDepth();
+        }
+        return top;
+    }
+
+    private boolean isTopCached() {
+        long e = topEpoch;
+        TreeNode<N> t = top;
+        return t != null && t.epoch == e;
+    }
+
+    /**
+     * Walk up to the top of the component, or to the first ancestor whose top is cached, and cache the top and the
+     * depth of each node of the walked path
+     */
+    private void cacheTopAndDepth() {
+        TreeNode<N> node = this;
+        int steps = 0;
+        while (!node.isTopCached() && node.parent != null) {
+            node = node.parent;
+            steps++;
+        }
+        TreeNode<N> t = node.isTopCached() ? node.top : node;
+        int d = (node.isTopCached() ? node.depth : 0) + steps;
+        node = this;
+        long e = t.epoch;
+        for (int i = 0; i <= steps; i++) {
+            node.top = t;
+            node.depth = d--;
+            node.topEpoch = e;
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Answer whether this node or one of its descendants is tagged as current, in constant time.
+     *
+     * @return true if this has a current node, false otherwise
+     */
+    private boolean hasCurrentNodeInChildren() {
+        return currentCount > 0;
     }
 
     /**
@@ -237,6 +442,16 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
         this.root = true;
     }
 
+    /**
+     * Link this root node to its tree.
+     *
+     * @param tree the tree whose root is this node
+     */
+    void setTree(Tree<N> tree) {
+        assert root : "Not a root node";
+        this.tree = tree;
+    }
+
     /**
      * Is this node set as the current node of its owning tree ?
      *
@@ -249,11 +464,22 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
     /**
      * Set wether this node was set as the current node of its owning tree. If true, the node cannot be disconnected
      * (removed from children list or added as a child of a node of anther tree) from its tree.
+     * <p>
+     * Each ancestor of this node counts the current nodes of its subtree, so that checking whether a subtree can be
+     * detached does not iterate over the subtree. Setting the current node thus costs O(depth).
      *
      * @param current current to set
      */
     void setCurrent(boolean current) {
+        if (this.current == current) {
+            return;
+        }
         this.current = current;
+        // a subtree with a current node cannot be detached: the counts of the ancestors remain valid until reset
+        int delta = current ? 1 : -1;
+        for (TreeNode<N> node = this; node != null; node = node.parent) {
+            node.currentCount += delta;
+        }
     }
 
     /**
@@ -288,21 +514,16 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
     /**
      * Return the root node of this node, or null if this node is not connected to a root node (not in a tree). If this
      * node is the root node, return this.
+     * <p>
+     * The root and the depth of a node are cached, and remain valid until a node is attached to or detached from the
+     * same tree: repeated calls are answered in constant time, and the first call after a change walks up to the root.
+     * Like the subtree sizes, the cache may be filled by concurrent readers of a tree that is not modified.
      *
      * @return the root node
      */
     public final N getRootNode() {
-        if (root) {
-            return self;
-        }
-        N p = parent;
-        while (p != null) {
-            if (p.isRoot()) {
-                return p;
-            }
-            p = p.getParent();
-        }
-        return null;
+        TreeNode<N> t = getTop();
+        return t.root ? t.self : null;
     }
 
     /**
@@ -312,15 +533,170 @@ public abstract class TreeNode<N extends TreeNode<N>> implements Iterable<N>, Se
      * @return depth of this node
      */
     public final int getDepth() {
-        int depth = 0;
-        N node = self;
-        while (node.getParent() != null) {
-            depth++;
-            node = node.getParent();
-        }
+        getTop();
         return depth;
     }
 
+    /**
+     * Return the number of nodes in the subtree rooted at this node, this node included.
+     * <p>
+     * The sizes are cached: the first call after a node was attached to or detached from the same tree counts the
+     * nodes of the subtree once, and caches the size of each of them; subsequent calls are answered in constant time.
+     * The changes of other trees do not invalidate the cached sizes.
+     *
+     * @return the size of the subtree, at least 1
+     */
+    public final int getSubtreeSize() {
+        TreeNode<N> t = getTop();
+        long version = t.modCount;
+        // the volatile version is read first, and written last
+        if (subtreeSizeVersion != version || subtreeSizeTop != t) {
+            // children are returned before their parent: their size is known when the parent size is computed
+            for (Iterator<N> it = getReverseIterator(); it.hasNext(); ) {
+                TreeNode<N> node = it.next();
+                int size = 1;
+                for (N child : node.children) {
+                    size += ((TreeNode<N>) child).subtreeSize;
+                }
+                node.subtreeSize = size;
+                node.subtreeSizeTop = t;
+                node.subtreeSizeVersion = version;
+            }
+        }
+        return subtreeSize;
+    }
+
+    /**
+     * Write the fields of this node, then, unless the component of this node is being written to the stream, the
+     * structure of the nodes connected to this node. The written components are only tracked during the outermost call,
+     * so that nothing is kept once the object is written.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Map<ObjectOutputStream, Set<TreeNode<?>>> streams = writingTops.get();
+        Set<TreeNode<?>> tops = streams.get(out);
+        boolean outermost = tops == null;
+        if (outermost) {
+            tops = Collections.newSetFromMap(new IdentityHashMap<>());
+            streams.put(out, tops);
+        }
+        try {
+            // a node reached through a field of a node of another component writes its own component
+            boolean structure = tops.add(getTop());
+            out.writeBoolean(structure);
+            if (structure) {
+                writeStructure(out);
+            }
+        } finally {
+            if (outermost) {
+                streams.remove(out);
+                if (streams.isEmpty()) {
+                    writingTops.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write each node of the component, in preorder, followed by its number of children
+     */
+    private void writeStructure(ObjectOutputStream out) throws IOException {
+        List<NodeFrame<N>> frames = new ArrayList<>();
+        N node = getTop().self;
+        out.writeObject(node);
+        out.writeInt(node.getChildren().size());
+        frames.add(new NodeFrame<>(node, node.getChildren()));
+        while (!frames.isEmpty()) {
+            NodeFrame<N> frame = frames.get(frames.size() - 1);
+            if (frame.hasNextChild()) {
+                N child = frame.nextChild();
+                out.writeObject(child);
+                out.writeInt(child.getChildren().size());
+                frames.add(new NodeFrame<>(child, child.getChildren()));
+            } else {
+                frames.remove(frames.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Read the fields of this node, then the structure of the nodes connected to this node if it was written with it.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        index = -1;
+        children = new ChildrenList<>(self);
+        if (in.readBoolean()) {
+            readStructure(in);
+        }
+    }
+
+    /**
+     * Read the nodes written by {@link #writeStructure(ObjectOutputStream)}, connecting each node to its parent. The
+     * nodes already read from the stream (a component written again) get the children that were written last.
+     */
+    @SuppressWarnings("unchecked")
+    private void readStructure(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        // the nodes whose children are being read, and the number of children still to read for each of them
+        List<N> parents = new ArrayList<>();
+        int[] remaining = new int[16];
+        N node = (N) in.readObject();
+        TreeNode<N> top = node;
+        boolean reread = top.clearDeserializedChildren();
+        int count = in.readInt();
+        if (count > 0) {
+            parents.add(node);
+            remaining[0] = count;
+        }
+        while (!parents.isEmpty()) {
+            int last = parents.size() - 1;
+            N parent = parents.get(last);
+            N child = (N) in.readObject();
+            count = in.readInt();
+            TreeNode<N> restored = child;
+            reread |= restored.clearDeserializedChildren();
+            ChildrenList<N> siblings = ((TreeNode<N>) parent).children;
+            restored.parent = parent;
+            restored.index = siblings.size();
+            siblings.appendDeserialized(child);
+            if (--remaining[last] == 0) {
+                parents.remove(last);
+            }
+            if (count > 0) {
+                if (parents.size() == remaining.length) {
+                    remaining = Arrays.copyOf(remaining, remaining.length * 2);
+                }
+                remaining[parents.size()] = count;
+                parents.add(child);
+            }
+        }
+        if (reread) {
+            // the cached tops and depths of the restored nodes are no longer valid
+            top.epoch++;
+            top.modCount++;
+        }
+    }
+
+    /**
+     * Detach the children of a node read again from a stream, before its children are read again
+     *
+     * @return true if the node had children
+     */
+    private boolean clearDeserializedChildren() {
+        if (children.isEmpty()) {
+            return false;
+        }
+        for (N child : children) {
+            TreeNode<N> old = child;
+            if (old.parent == self) {
+                old.parent = null;
+                old.index = -1;
+            }
+        }
+        children = new ChildrenList<>(self);
+        return true;
+    }
+
     /*
      * Protect Identity equals
      */
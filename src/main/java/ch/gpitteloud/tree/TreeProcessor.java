@@ -1,5 +1,15 @@
 package ch.gpitteloud.tree;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
 /**
  * An utility class that contains methods for performing actions while traversing a tree.
  *
@@ -8,9 +18,13 @@ package ch.gpitteloud.tree;
  */
 public class TreeProcessor<N> {
 
-    private final ParentChildResolver<N> resolver;
+    private final ChildResolver<N> resolver;
+
+    private ForkJoinPool forkJoinPool;
+    private long sequentialThreshold = SequentialThreshold.DEFAULT_THRESHOLD;
+    private boolean cycleDetection;
 
-    public TreeProcessor(ParentChildResolver<N> resolver) {
+    public TreeProcessor(ChildResolver<N> resolver) {
         this.resolver = resolver;
     }
 
@@ -22,8 +36,169 @@ public class TreeProcessor<N> {
      * @param callback the callback
      */
     public final void processNodes(N root, AroundChildrenNodeCallback<N> callback) {
-        StatefulNodeCallbackProcessor<N> processor = new StatefulNodeCallbackProcessor<>(root, resolver, callback);
+        StatefulNodeCallbackProcessor<N> processor = new StatefulNodeCallbackProcessor<>(root, resolver, callback,
+                cycleDetection, null);
         processor.processNodes();
     }
 
+    /**
+     * Perform the callback actions like {@link #processNodes(Object, AroundChildrenNodeCallback)}, but process the
+     * subtrees of sibling nodes concurrently in the fork/join pool.
+     * <p>
+     * Within a subtree, the callback order is the same as in sequential mode: a node is processed, then beforeChildren
+     * is invoked, then its children subtrees are processed, and afterChildren is invoked once all its children subtrees
+     * are completed. The callback must thus be thread-safe regarding sibling subtrees.
+     * <p>
+     * Subtrees smaller than the sequential threshold are processed sequentially within a single task. When the
+     * resolver does not know subtree sizes (see {@link SubtreeSizeResolver}), a subtree is processed sequentially
+     * once the current worker has enough queued tasks.
+     *
+     * @param root the root node of the tree to traverse
+     * @param callback the callback, thread-safe
+     */
+    public final void processNodesInParallel(N root, AroundChildrenNodeCallback<N> callback) {
+        assert callback != null : "Invalid null callback";
+        if (root == null) {
+            return;
+        }
+        getForkJoinPool().invoke(new ForkJoinNodeCallbackProcessor<>(root, resolver, callback, createThreshold(),
+                cycleDetection, null));
+    }
+
+    /**
+     * Compute a value for the root node, bottom-up: the value of a node is its own value, combined with the values of
+     * its children, in the order of the children. For a node with children c1, c2 and c3, the value is
+     * <code>combiner(combiner(combiner(nodeValue(node), value(c1)), value(c2)), value(c3))</code>; the value of a leaf
+     * is its own value.
+     * <p>
+     * The subtrees of sibling nodes are folded concurrently in the fork/join pool, with the same sequential threshold
+     * as {@link #processNodesInParallel(Object, AroundChildrenNodeCallback)}. The functions must thus be thread-safe.
+     *
+     * @param root the root node of the tree to fold
+     * @param nodeValue the own value of a node, without its children
+     * @param combiner combines the value of a node with the value of one of its children
+     * @return the value of the root node, null if the root node is null
+     */
+    public final <R> R fold(N root, Function<? super N, ? extends R> nodeValue, BinaryOperator<R> combiner) {
+        assert nodeValue != null : "Invalid null nodeValue";
+        assert combiner != null : "Invalid null combiner";
+        if (root == null) {
+            return null;
+        }
+        ForkJoinFold.ObjectFold<N, R> fold = new ForkJoinFold.ObjectFold<>(root, resolver, createThreshold(),
+                nodeValue, combiner, cycleDetection);
+        getForkJoinPool().invoke(fold);
+        return fold.value;
+    }
+
+    /**
+     * Compute a long value for the root node, bottom-up, like {@link #fold(Object, Function, BinaryOperator)} without
+     * boxing the values.
+     *
+     * @param root the root node of the tree to fold, not null
+     * @param nodeValue the own value of a node, without its children
+     * @param combiner combines the value of a node with the value of one of its children
+     * @return the value of the root node
+     */
+    public final long foldToLong(N root, ToLongFunction<? super N> nodeValue, LongBinaryOperator combiner) {
+        assert root != null : "Invalid null root";
+        assert nodeValue != null : "Invalid null nodeValue";
+        assert combiner != null : "Invalid null combiner";
+        ForkJoinFold.LongFold<N> fold = new ForkJoinFold.LongFold<>(root, resolver, createThreshold(), nodeValue,
+                combiner, cycleDetection);
+        getForkJoinPool().invoke(fold);
+        return fold.value;
+    }
+
+    /**
+     * Compute an int value for the root node, bottom-up, like {@link #fold(Object, Function, BinaryOperator)} without
+     * boxing the values.
+     *
+     * @param root the root node of the tree to fold, not null
+     * @param nodeValue the own value of a node, without its children
+     * @param combiner combines the value of a node with the value of one of its children
+     * @return the value of the root node
+     */
+    public final int foldToInt(N root, ToIntFunction<? super N> nodeValue, IntBinaryOperator combiner) {
+        assert root != null : "Invalid null root";
+        assert nodeValue != null : "Invalid null nodeValue";
+        assert combiner != null : "Invalid null combiner";
+        ForkJoinFold.IntFold<N> fold = new ForkJoinFold.IntFold<>(root, resolver, createThreshold(), nodeValue,
+                combiner, cycleDetection);
+        getForkJoinPool().invoke(fold);
+        return fold.value;
+    }
+
+    /**
+     * Compute a double value for the root node, bottom-up, like {@link #fold(Object, Function, BinaryOperator)}
+     * without boxing the values.
+     *
+     * @param root the root node of the tree to fold, not null
+     * @param nodeValue the own value of a node, without its children
+     * @param combiner combines the value of a node with the value of one of its children
+     * @return the value of the root node
+     */
+    public final double foldToDouble(N root, ToDoubleFunction<? super N> nodeValue, DoubleBinaryOperator combiner) {
+        assert root != null : "Invalid null root";
+        assert nodeValue != null : "Invalid null nodeValue";
+        assert combiner != null : "Invalid null combiner";
+        ForkJoinFold.DoubleFold<N> fold = new ForkJoinFold.DoubleFold<>(root, resolver, createThreshold(), nodeValue,
+                combiner, cycleDetection);
+        getForkJoinPool().invoke(fold);
+        return fold.value;
+    }
+
+    private SequentialThreshold<N> createThreshold() {
+        return new SequentialThreshold<>(resolver, sequentialThreshold);
+    }
+
+    /**
+     * @return the pool used to process nodes in parallel, the common pool by default
+     */
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool == null ? ForkJoinPool.commonPool() : forkJoinPool;
+    }
+
+    /**
+     * @param forkJoinPool the pool used to process nodes in parallel; null to use the common pool
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * @return the maximal size of the subtrees that are processed sequentially in parallel mode and in folds
+     */
+    public long getSequentialThreshold() {
+        return sequentialThreshold;
+    }
+
+    /**
+     * @param sequentialThreshold the maximal size of the subtrees that are processed sequentially in parallel mode;
+     *            only used when the resolver knows the subtree sizes
+     */
+    public void setSequentialThreshold(long sequentialThreshold) {
+        assert sequentialThreshold >= 0 : "Invalid negative sequentialThreshold";
+        this.sequentialThreshold = sequentialThreshold;
+    }
+
+    /**
+     * @return true if the cycle detector is enabled
+     */
+    public boolean isCycleDetection() {
+        return cycleDetection;
+    }
+
+    /**
+     * Enable or disable the cycle detector (disabled by default). When enabled, all the methods of this processor
+     * throw a {@link CycleInTreeException} when a node returned by the resolver is one of its own ancestors (compared
+     * by identity). Only the ancestors of the nodes being processed are tracked.
+     *
+     * @param cycleDetection true to enable cycle detection
+     * @see DefaultTreeIterator#setCycleDetection(boolean)
+     */
+    public void setCycleDetection(boolean cycleDetection) {
+        this.cycleDetection = cycleDetection;
+    }
+
 }
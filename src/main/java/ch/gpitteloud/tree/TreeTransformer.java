@@ -2,6 +2,7 @@ package ch.gpitteloud.tree;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * A helper for working with tree, based on callback interfaces. Basically, methods work with an existing tree structure
@@ -16,16 +17,19 @@ import java.util.List;
  */
 public class TreeTransformer<S, T> {
 
-    private final ParentChildResolver<S> sourceResolver;
-    final ParentChildResolver<T> targetResolver;
+    private final ChildResolver<S> sourceResolver;
+    final ChildResolver<T> targetResolver;
+
+    private ForkJoinPool forkJoinPool;
+    private long sequentialThreshold = SequentialThreshold.DEFAULT_THRESHOLD;
 
     /**
      * Construct a transformer from S to T
      *
      * @param sourceResolver source resolver
-     * @param targetResolver target resolver
+     * @param targetResolver target resolver, whose children lists are modifiable
      */
-    public TreeTransformer(ParentChildResolver<S> sourceResolver, ParentChildResolver<T> targetResolver) {
+    public TreeTransformer(ChildResolver<S> sourceResolver, ChildResolver<T> targetResolver) {
         assert sourceResolver != null : "Invalid null sourceResolver";
         this.sourceResolver = sourceResolver;
         this.targetResolver = targetResolver;
@@ -100,6 +104,111 @@ public class TreeTransformer<S, T> {
         transformer.update();
     }
 
+    /**
+     * Create a tree of T like {@link #create(Object, NodeMapper)}, but map the subtrees of sibling source nodes
+     * concurrently in the fork/join pool.
+     * <p>
+     * The children of each target node are still attached in the order of the source children, and each target node
+     * is only modified by a single thread. The mapper must be thread-safe and return a new target node for each
+     * source node, and the target children lists must not be shared between target nodes.
+     *
+     * @param rootSource the root source node
+     * @param mapper the mapper from S to T, not null, thread-safe
+     * @return the root node of the target tree, null if the rootSource is null, or if the root source is skipped.
+     */
+    public final T createInParallel(S rootSource, NodeMapper<S, T> mapper) {
+        assert targetResolver != null : "Invalid null targetResolver";
+        assert mapper != null : "The mapper must not be null";
+        NodeMapperCallbackHandler handler = new NodeMapperCallbackHandler(mapper);
+        updateInParallel(rootSource, null, handler);
+        return handler.getRootNode();
+    }
+
+    /**
+     * Update the Target tree like {@link #update(Object, Object, NodeCallbackHandler)}, but handle the subtrees of
+     * sibling source nodes concurrently in the fork/join pool.
+     *
+     * @param rootSource the root of the source tree
+     * @param rootTarget the root of the target tree, or null to create a new tree
+     * @param callback action do be done on each source node to update the target tree, thread-safe, returning target
+     *            nodes that are only shared between siblings
+     * @see #updateInParallel(Object, Object, MultiNodesCallbackHandler)
+     */
+    public final void updateInParallel(S rootSource, T rootTarget, NodeCallbackHandler<S, T> callback) {
+        assert callback != null : "Invalid null callback";
+        updateInParallel(rootSource, rootTarget, new SingleNodeToMultiNodesHandlerAdapter(callback));
+    }
+
+    /**
+     * Update the Target tree like {@link #update(Object, Object, MultiNodesCallbackHandler)}, but handle the subtrees
+     * of sibling source nodes concurrently in the fork/join pool.
+     * <p>
+     * The callback is invoked for all the children of a source node by a single thread, in the order of the source
+     * children, so that the target children are attached in source order; the subtrees of these children are then
+     * handled concurrently. The callback is thus invoked concurrently, but never concurrently with the same target
+     * parent node: no global lock is needed to build the target tree. The source tree is not navigated in BFS, and the
+     * parents of the source nodes are only resolved within subtrees smaller than the sequential threshold.
+     * <p>
+     * Sibling source nodes may be mapped to a same target node, such as their target parent node to flatten a level:
+     * they are then handled together by a single thread, level by level, so that the target children are attached in
+     * the same order as the sequential update. Otherwise, the callback must return distinct target nodes: a target node
+     * returned for two source nodes that are not siblings would be modified by two threads. Distinct target nodes must
+     * not share their children lists either.
+     *
+     * @param rootSource the root of the source tree
+     * @param rootTarget the root of the target tree, or null to create a new tree
+     * @param callback action do be done on each source node to update the target tree, thread-safe, returning target
+     *            nodes that are only shared between siblings
+     */
+    public final void updateInParallel(S rootSource, T rootTarget, MultiNodesCallbackHandler<S, T> callback) {
+        assert callback != null : "Invalid null callback";
+        if (rootSource == null) {
+            return;
+        }
+        List<T> rootTargets;
+        if (rootTarget == null) {
+            rootTargets = StatefulNodeCallbackTransformer.invokeCallback(callback, rootSource,
+                    Collections.<T>singletonList(null));
+            if (rootTargets.isEmpty()) {
+                return;
+            }
+        } else {
+            rootTargets = Collections.singletonList(rootTarget);
+        }
+        getForkJoinPool().invoke(new ForkJoinNodeCallbackTransformer<>(sourceResolver, rootSource, rootTargets,
+                callback, new SequentialThreshold<>(sourceResolver, sequentialThreshold)));
+    }
+
+    /**
+     * @return the pool used to transform trees in parallel, the common pool by default
+     */
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool == null ? ForkJoinPool.commonPool() : forkJoinPool;
+    }
+
+    /**
+     * @param forkJoinPool the pool used to transform trees in parallel; null to use the common pool
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * @return the maximal size of the source subtrees that are handled sequentially in parallel mode
+     */
+    public long getSequentialThreshold() {
+        return sequentialThreshold;
+    }
+
+    /**
+     * @param sequentialThreshold the maximal size of the source subtrees that are handled sequentially in parallel
+     *            mode; only used when the source resolver knows the subtree sizes
+     */
+    public void setSequentialThreshold(long sequentialThreshold) {
+        assert sequentialThreshold >= 0 : "Invalid negative sequentialThreshold";
+        this.sequentialThreshold = sequentialThreshold;
+    }
+
     /**
      * Adapter from single-node to multi-nodes handler.
      *
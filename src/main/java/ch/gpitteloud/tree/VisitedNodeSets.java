@@ -0,0 +1,139 @@
+package ch.gpitteloud.tree;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToIntFunction;
+
+/**
+ * Internal implementations of {@link VisitedNodes}.
+ *
+ * @author Gaëtan Pitteloud
+ */
+final class VisitedNodeSets {
+
+    private VisitedNodeSets() {
+    }
+
+    /**
+     * Visited set based on an {@link IdentityHashMap}
+     */
+    static final class IdentityVisitedNodes<N> implements VisitedNodes<N> {
+
+        private final Map<N, Boolean> visited = new IdentityHashMap<>();
+
+        @Override
+        public boolean add(N node) {
+            return visited.put(node, Boolean.TRUE) == null;
+        }
+
+        @Override
+        public boolean contains(N node) {
+            return visited.containsKey(node);
+        }
+    }
+
+    /**
+     * Visited set based on a {@link ConcurrentHashMap} whose keys compare the nodes by identity
+     */
+    static final class ConcurrentIdentityVisitedNodes<N> implements VisitedNodes<N> {
+
+        private final Map<IdentityKey, Boolean> visited = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean add(N node) {
+            return visited.putIfAbsent(new IdentityKey(node), Boolean.TRUE) == null;
+        }
+
+        @Override
+        public boolean contains(N node) {
+            return visited.containsKey(new IdentityKey(node));
+        }
+    }
+
+    private static final class IdentityKey {
+        private final Object node;
+
+        IdentityKey(Object node) {
+            this.node = node;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof IdentityKey && ((IdentityKey) obj).node == node;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(node);
+        }
+    }
+
+    /**
+     * Visited set recording node ids in a {@link BitSet}
+     */
+    static final class BitSetVisitedNodes<N> implements VisitedNodes<N> {
+
+        private final ToIntFunction<? super N> id;
+        private final BitSet visited = new BitSet();
+
+        BitSetVisitedNodes(ToIntFunction<? super N> id) {
+            assert id != null : "Invalid null id";
+            this.id = id;
+        }
+
+        @Override
+        public boolean add(N node) {
+            int index = id.applyAsInt(node);
+            if (visited.get(index)) {
+                return false;
+            }
+            visited.set(index);
+            return true;
+        }
+
+        @Override
+        public boolean contains(N node) {
+            return visited.get(id.applyAsInt(node));
+        }
+    }
+
+    /**
+     * Visited set recording node ids in an {@link AtomicLongArray} used as a bitset, updated with compare-and-set
+     */
+    static final class AtomicBitSetVisitedNodes<N> implements VisitedNodes<N> {
+
+        private final ToIntFunction<? super N> id;
+        private final AtomicLongArray words;
+
+        AtomicBitSetVisitedNodes(ToIntFunction<? super N> id, int maxId) {
+            assert id != null : "Invalid null id";
+            assert maxId >= 0 : "Invalid negative maxId";
+            this.id = id;
+            this.words = new AtomicLongArray((maxId + 63) >>> 6);
+        }
+
+        @Override
+        public boolean add(N node) {
+            int index = id.applyAsInt(node);
+            int wordIndex = index >>> 6;
+            long mask = 1L << index;
+            long word;
+            do {
+                word = words.get(wordIndex);
+                if ((word & mask) != 0) {
+                    return false;
+                }
+            } while (!words.compareAndSet(wordIndex, word, word | mask));
+            return true;
+        }
+
+        @Override
+        public boolean contains(N node) {
+            int index = id.applyAsInt(node);
+            return (words.get(index >>> 6) & (1L << index)) != 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ch.gpitteloud.tree;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * A set of the nodes that were already visited, used to traverse structures whose nodes may be reached through many
+ * paths (DAGs) only once per node: a node is visited the first time it is reached, and the subtree of a node that is
+ * reached again is not traversed again.
+ * <p>
+ * Instances are created with the static factory methods: nodes are either compared by identity, or identified by a
+ * non-negative int id and recorded in a bitset. The concurrent variants are to be used by spliterators of parallel
+ * streams, that share the same visited set between threads.
+ *
+ * @author Gaëtan Pitteloud
+ * @param <N> The node type
+ * @see DefaultTreeIterator#setVisitedNodes(VisitedNodes)
+ */
+public interface VisitedNodes<N> {
+
+    /**
+     * Mark a node as visited. For concurrent sets, the operation is atomic: when many threads add the same node, only
+     * one of them gets true.
+     *
+     * @param node the node, not null
+     * @return true if the node was not visited yet, false otherwise
+     */
+    boolean add(N node);
+
+    /**
+     * @param node the node, not null
+     * @return true if the node was already visited
+     */
+    boolean contains(N node);
+
+    /**
+     * @return a visited set comparing nodes by identity, not thread-safe
+     */
+    static <N> VisitedNodes<N> identity() {
+        return new VisitedNodeSets.IdentityVisitedNodes<>();
+    }
+
+    /**
+     * @return a thread-safe visited set comparing nodes by identity
+     */
+    static <N> VisitedNodes<N> concurrentIdentity() {
+        return new VisitedNodeSets.ConcurrentIdentityVisitedNodes<>();
+    }
+
+    /**
+     * Create a visited set recording the ids of the nodes in a bitset that grows as needed, not thread-safe.
+     *
+     * @param id the id of a node, not negative, and unique among the nodes of the structure
+     * @return a compact visited set for nodes identified by an int id
+     */
+    static <N> VisitedNodes<N> bitSet(ToIntFunction<? super N> id) {
+        return new VisitedNodeSets.BitSetVisitedNodes<>(id);
+    }
+
+    /**
+     * Create a thread-safe visited set recording the ids of the nodes in a fixed size bitset.
+     *
+     * @param id the id of a node, not negative, less than maxId, and unique among the nodes of the structure
+     * @param maxId the upper bound (exclusive) of the ids
+     * @return a compact thread-safe visited set for nodes identified by an int id
+     */
+    static <N> VisitedNodes<N> concurrentBitSet(ToIntFunction<? super N> id, int maxId) {
+        return new VisitedNodeSets.AtomicBitSetVisitedNodes<>(id, maxId);
+    }
+}
@@ -0,0 +1,191 @@
+package ch.gpitteloud.tree;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link AsyncTreeIterator}
+ *
+ * @author Gaëtan Pitteloud
+ */
+public class AsyncTreeIteratorTestCase {
+
+    private SampleNode root;
+    private ExecutorService executor = Executors.newFixedThreadPool(8);
+    private StubResolver resolver = new StubResolver();
+
+    @Before
+    public void setUp() throws Exception {
+        root = SampleNode.createTree("root", "c0", "c1", "c2");
+        root.getChildAt(0).createChildren("c00", "c01", "c02");
+        root.getChildAt(1).createChildren("c10", "c11");
+        root.getChildAt(2).createChildren("c20");
+        root.getChildAt(0).getChildAt(1).createChildren("c010", "c011");
+        root.getChildAt(1).getChildAt(1).createChildren("c110");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void sameOrderAsDefaultIterator() throws Exception {
+        for (ExplorationMode mode : ExplorationMode.values()) {
+            List<SampleNode> expected = new ArrayList<>();
+            root.iterator(mode).forEachRemaining(expected::add);
+
+            List<SampleNode> nodes = new ArrayList<>();
+            new AsyncTreeIterator<>(mode, root, resolver, 4).forEachRemaining(nodes::add);
+
+            assertEquals(expected, nodes);
+        }
+    }
+
+    @Test
+    public void fetchesInFlight() throws Exception {
+        List<SampleNode> nodes = new ArrayList<>();
+        new AsyncTreeIterator<>(ExplorationMode.BFS, root, resolver, 3).forEachRemaining(nodes::add);
+
+        assertEquals(13, nodes.size());
+        assertEquals(13, resolver.fetches.get());
+        assertTrue(resolver.maxInFlight.get() > 1);
+        assertTrue(resolver.maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void fetchesInFlightBoundedInDfs() throws Exception {
+        List<SampleNode> nodes = new ArrayList<>();
+        new AsyncTreeIterator<>(ExplorationMode.DFS, root, resolver, 2).forEachRemaining(nodes::add);
+
+        assertEquals(13, nodes.size());
+        assertEquals(13, resolver.fetches.get());
+        assertEquals(2, resolver.maxInFlight.get());
+    }
+
+    @Test
+    public void windowRefilledAfterSkipChildren() throws Exception {
+        List<SampleNode> started = new ArrayList<>();
+        List<CompletableFuture<List<SampleNode>>> pending = new ArrayList<>();
+        // fetches that only complete when the test completes them
+        AsyncParentChildResolver<SampleNode> blockingResolver = new StubResolver() {
+            @Override
+            public CompletableFuture<List<SampleNode>> getChildrenAsync(SampleNode node) {
+                started.add(node);
+                CompletableFuture<List<SampleNode>> fetch = new CompletableFuture<>();
+                pending.add(fetch);
+                return fetch;
+            }
+        };
+        AsyncTreeIterator<SampleNode> it = new AsyncTreeIterator<>(ExplorationMode.DFS, root, blockingResolver, 2);
+        assertEquals(1, started.size());
+        pending.get(0).complete(root.getChildren());
+        assertEquals("root", it.next().getValue());
+        // root fetch completed: c0 and c1 in flight
+        assertEquals(3, started.size());
+        pending.get(1).complete(root.getChildAt(0).getChildren());
+        assertEquals("c0", it.next().getValue());
+        // c0 fetch completed: c00 in flight with c1, the window is full
+        assertEquals(4, started.size());
+        assertEquals("c00", started.get(3).getValue());
+
+        it.skipChildren();
+        // c00 cancelled: the next buffered nodes are c1, still in flight, and c2
+        assertTrue(pending.get(3).isCancelled());
+        assertEquals(5, started.size());
+        assertEquals("c2", started.get(4).getValue());
+    }
+
+    @Test
+    public void skippedChildrenFetchesCancelled() throws Exception {
+        Map<SampleNode, CompletableFuture<List<SampleNode>>> started = new ConcurrentHashMap<>();
+        AsyncParentChildResolver<SampleNode> recordingResolver = new StubResolver() {
+            @Override
+            public CompletableFuture<List<SampleNode>> getChildrenAsync(SampleNode node) {
+                CompletableFuture<List<SampleNode>> fetch = super.getChildrenAsync(node);
+                started.put(node, fetch);
+                return fetch;
+            }
+        };
+        AsyncTreeIterator<SampleNode> it = new AsyncTreeIterator<>(ExplorationMode.DFS, root, recordingResolver, 2);
+
+        assertEquals("root", it.next().getValue());
+        SampleNode c0 = it.next();
+        assertEquals("c0", c0.getValue());
+        it.skipChildren();
+        assertEquals("c1", it.next().getValue());
+
+        // the fetch of c00 was started with the one of c1, when the children of c0 were buffered
+        assertTrue(started.containsKey(c0.getChildAt(0)));
+        for (SampleNode child : c0.getChildren()) {
+            CompletableFuture<List<SampleNode>> fetch = started.get(child);
+            assertTrue(fetch == null || fetch.isCancelled());
+        }
+        assertFalse(started.get(root.getChildAt(1)).isCancelled());
+    }
+
+    @Test
+    public void fetchFailure() throws Exception {
+        AsyncParentChildResolver<SampleNode> failingResolver = new StubResolver() {
+            @Override
+            public CompletableFuture<List<SampleNode>> getChildrenAsync(SampleNode node) {
+                if (node.getValue().equals("c1")) {
+                    CompletableFuture<List<SampleNode>> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(new IllegalStateException("unavailable"));
+                    return failed;
+                }
+                return super.getChildrenAsync(node);
+            }
+        };
+        AsyncTreeIterator<SampleNode> it = new AsyncTreeIterator<>(ExplorationMode.BFS, root, failingResolver, 4);
+        assertEquals("root", it.next().getValue());
+        assertEquals("c0", it.next().getValue());
+        try {
+            it.next();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("unavailable", e.getMessage());
+        }
+    }
+
+    /**
+     * A resolver that fetches the children with some latency, counting the fetches in flight
+     */
+    private class StubResolver extends TreeNode.Resolver<SampleNode> implements AsyncParentChildResolver<SampleNode> {
+
+        final AtomicInteger fetches = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public CompletableFuture<List<SampleNode>> getChildrenAsync(SampleNode node) {
+            fetches.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return node.getChildren();
+            }, executor).whenComplete((children, e) -> inFlight.decrementAndGet());
+        }
+
+        @Override
+        public List<SampleNode> getChildren(SampleNode node) {
+            return AsyncParentChildResolver.super.getChildren(node);
+        }
+    }
+}
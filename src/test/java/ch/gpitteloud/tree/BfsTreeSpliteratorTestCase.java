@@ -0,0 +1,165 @@
+package ch.gpitteloud.tree;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link BfsTreeSpliterator}
+ *
+ * @author Gaëtan Pitteloud
+ */
+public class BfsTreeSpliteratorTestCase {
+
+    private SampleNode root;
+    private List<SampleNode> bfsOrder = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        root = SampleNode.createTree("root", "c0", "c1", "c2");
+        root.getChildAt(0).createChildren("c00", "c01");
+        root.getChildAt(1).createChildren("c10");
+        root.getChildAt(2).createChildren("c20", "c21", "c22");
+        root.getChildAt(0).getChildAt(1).createChildren("c010", "c011");
+        root.getChildAt(2).getChildAt(2).createChildren("c220");
+        root.iterator(ExplorationMode.BFS).forEachRemaining(bfsOrder::add);
+    }
+
+    @Test
+    public void nullRoot() throws Exception {
+        BfsTreeSpliterator<SampleNode> s = new BfsTreeSpliterator<>(null, new TreeNode.Resolver<SampleNode>());
+        assertEquals(0, s.estimateSize());
+        assertFalse(s.tryAdvance(n -> fail()));
+        assertNull(s.trySplit());
+    }
+
+    @Test
+    public void sequentialOrder() throws Exception {
+        List<SampleNode> nodes = new ArrayList<>();
+        BfsTreeSpliterator<SampleNode> s = createSpliterator();
+        while (s.tryAdvance(nodes::add)) {
+            // consume one by one
+        }
+        assertEquals(bfsOrder, nodes);
+    }
+
+    @Test
+    public void splitPrefix() throws Exception {
+        BfsTreeSpliterator<SampleNode> s0 = createSpliterator();
+        assertEquals(bfsOrder.size(), s0.estimateSize());
+
+        // root level: the single node is forked
+        Spliterator<SampleNode> s1 = s0.trySplit();
+        assertEquals(1, s1.estimateSize());
+        assertEquals(bfsOrder.size() - 1, s0.estimateSize());
+
+        // next level is built and split in halves
+        Spliterator<SampleNode> s2 = s0.trySplit();
+        assertEquals(1, s2.estimateSize());
+        assertTrue(s2.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+
+        List<SampleNode> nodes = new ArrayList<>();
+        s1.forEachRemaining(nodes::add);
+        s2.forEachRemaining(nodes::add);
+        s0.forEachRemaining(nodes::add);
+        assertEquals(bfsOrder, nodes);
+        assertEquals(0, s0.estimateSize());
+    }
+
+    @Test
+    public void splitBeforeResolving() throws Exception {
+        Map<SampleNode, AtomicInteger> resolutions = new ConcurrentHashMap<>();
+        ChildResolver<SampleNode> resolver = node -> {
+            resolutions.computeIfAbsent(node, n -> new AtomicInteger()).incrementAndGet();
+            return node.getChildren();
+        };
+        BfsTreeSpliterator<SampleNode> s0 = new BfsTreeSpliterator<>(root, resolver);
+        List<SampleNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            s0.tryAdvance(nodes::add);
+        }
+        assertEquals(bfsOrder.subList(0, 4), nodes);
+        int resolved = resolutions.size();
+
+        // the level of c0, c1, c2 is exhausted: the next level is split before it is resolved
+        Spliterator<SampleNode> s1 = s0.trySplit();
+        assertNotNull(s1);
+        assertFalse(s1.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(resolved, resolutions.size());
+
+        s1.forEachRemaining(nodes::add);
+        s0.forEachRemaining(nodes::add);
+        assertEquals(bfsOrder, nodes);
+        for (Map.Entry<SampleNode, AtomicInteger> entry : resolutions.entrySet()) {
+            assertEquals(entry.getKey().getValue(), 1, entry.getValue().get());
+        }
+    }
+
+    @Test
+    public void parallelStream() throws Exception {
+        List<SampleNode> nodes = StreamSupport.stream(createSpliterator(), true).collect(Collectors.toList());
+        assertEquals(bfsOrder, nodes);
+        assertArrayEquals(bfsOrder.toArray(), new Tree<>(root).bfsStream(true).toArray());
+    }
+
+    @Test
+    public void levelsSharedBetweenThreads() throws Exception {
+        SampleNode wide = new SampleNode("wide");
+        for (int i = 0; i < 50; i++) {
+            SampleNode child = new SampleNode("c" + i);
+            wide.addChild(child);
+            for (int j = 0; j < 50; j++) {
+                child.addChild(new SampleNode("c" + i + "-" + j));
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        ConcurrentHashMap<Thread, Boolean> threads = new ConcurrentHashMap<>();
+        new Tree<>(wide).bfsStream(true).forEach(n -> {
+            count.incrementAndGet();
+            threads.put(Thread.currentThread(), true);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+        assertEquals(1 + 50 + 50 * 50, count.get());
+        if (Runtime.getRuntime().availableProcessors() > 1) {
+            assertTrue(threads.size() > 1);
+        }
+    }
+
+    @Test
+    public void unknownSize() throws Exception {
+        ParentChildResolver<SampleNode> resolver = new ParentChildResolver<SampleNode>() {
+            @Override
+            public List<SampleNode> getChildren(SampleNode node) {
+                return node.getChildren();
+            }
+
+            @Override
+            public SampleNode getParent(SampleNode node) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        BfsTreeSpliterator<SampleNode> s = new BfsTreeSpliterator<>(root, resolver);
+        assertFalse(s.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(Long.MAX_VALUE, s.estimateSize());
+        assertEquals(bfsOrder, StreamSupport.stream(s, true).collect(Collectors.toList()));
+    }
+
+    private BfsTreeSpliterator<SampleNode> createSpliterator() {
+        return new BfsTreeSpliterator<>(root, new TreeNode.Resolver<>());
+    }
+
+}
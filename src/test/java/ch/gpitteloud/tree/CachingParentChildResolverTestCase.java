@@ -0,0 +1,185 @@
+package ch.gpitteloud.tree;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CachingParentChildResolver}
+ *
+ * @author Gaëtan Pitteloud
+ */
+public class CachingParentChildResolverTestCase {
+
+    private SampleNode root;
+    private SampleNode c0;
+    private SampleNode c1;
+    private CountingResolver delegate = new CountingResolver();
+
+    @Before
+    public void setUp() throws Exception {
+        root = SampleNode.createTree("root", "c0", "c1", "c2");
+        c0 = root.getChildAt(0);
+        c1 = root.getChildAt(1);
+        c0.createChildren("c00", "c01");
+        c1.createChildren("c10");
+    }
+
+    @Test
+    public void cachedChildren() throws Exception {
+        CachingParentChildResolver<SampleNode> resolver = new CachingParentChildResolver<>(delegate, 10);
+
+        assertEquals(resolver.getChildren(root), root.getChildren());
+        assertEquals(resolver.getChildren(root), root.getChildren());
+        assertEquals(1, delegate.childrenCalls.get());
+        assertEquals(1, resolver.getHitCount());
+        assertEquals(1, resolver.getMissCount());
+        try {
+            resolver.getChildren(root).clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // cached lists are shared
+        }
+    }
+
+    @Test
+    public void cachedRootParent() throws Exception {
+        CachingParentChildResolver<SampleNode> resolver = new CachingParentChildResolver<>(delegate, 10);
+
+        assertNull(resolver.getParent(root));
+        assertNull(resolver.getParent(root));
+        assertSame(root, resolver.getParent(c1));
+        assertEquals(2, delegate.parentCalls.get());
+        assertEquals(1, resolver.getHitCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        CachingParentChildResolver<SampleNode> resolver = new CachingParentChildResolver<>(delegate, 2);
+
+        resolver.getChildren(root);
+        resolver.getChildren(c0);
+        resolver.getChildren(root);
+        resolver.getChildren(c1); // evicts c0
+        assertEquals(3, delegate.childrenCalls.get());
+
+        resolver.getChildren(root);
+        resolver.getChildren(c1);
+        assertEquals(3, delegate.childrenCalls.get());
+        resolver.getChildren(c0);
+        assertEquals(4, delegate.childrenCalls.get());
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        CachingParentChildResolver<SampleNode> resolver = new CachingParentChildResolver<>(delegate, 10, true);
+
+        assertEquals(1, resolver.getChildren(c1).size());
+        c1.createChildren("c11");
+        assertEquals(1, resolver.getChildren(c1).size());
+        resolver.invalidate(c1);
+        assertEquals(2, resolver.getChildren(c1).size());
+        assertEquals(2, delegate.childrenCalls.get());
+    }
+
+    @Test
+    public void modificationsRejected() throws Exception {
+        CachingParentChildResolver<SampleNode> resolver = new CachingParentChildResolver<>(delegate, 10);
+        DefaultTreeIterator<SampleNode> it = new DefaultTreeIterator<>(ExplorationMode.DFS, root, resolver);
+        it.next();
+        it.next();
+        try {
+            it.remove();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            assertSame(root, c0.getParent());
+        }
+        try {
+            new TreeTransformer<>(resolver, resolver).create(root, s -> new SampleNode(s.getValue()));
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // the target children are added through the target resolver
+        }
+    }
+
+    @Test
+    public void subtreeSizesForwarded() throws Exception {
+        CachingParentChildResolver<SampleNode> resolver = CachingParentChildResolver.of(delegate, 10, false);
+        assertTrue(resolver instanceof SubtreeSizeResolver);
+        assertEquals(root.getSubtreeSize(), ((SubtreeSizeResolver<SampleNode>) resolver).getSubtreeSize(root));
+
+        DfsTreeSpliterator<SampleNode> spliterator = new DfsTreeSpliterator<>(root, resolver);
+        assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        assertEquals(root.getSubtreeSize(), spliterator.getExactSizeIfKnown());
+
+        MapResolver graph = new MapResolver().add("a", "b");
+        assertFalse(CachingParentChildResolver.of(graph, 10, false) instanceof SubtreeSizeResolver);
+    }
+
+    @Test
+    public void segmentedCache() throws Exception {
+        SampleNode wide = new SampleNode("wide");
+        for (int i = 0; i < 500; i++) {
+            wide.addChild(new SampleNode("c" + i));
+        }
+        CachingParentChildResolver<SampleNode> resolver = new CachingParentChildResolver<>(delegate, 1000);
+        for (int pass = 0; pass < 2; pass++) {
+            for (SampleNode child : wide.getChildren()) {
+                assertTrue(resolver.getChildren(child).isEmpty());
+            }
+        }
+        // fits in the segments of the cache
+        assertEquals(500, resolver.getHitCount());
+        assertEquals(500, resolver.getMissCount());
+        resolver.invalidateAll();
+        resolver.getChildren(wide.getChildAt(0));
+        assertEquals(501, resolver.getMissCount());
+    }
+
+    @Test
+    public void parallelSpliterator() throws Exception {
+        for (SampleNode child : c0.getChildren()) {
+            child.createChildren("a", "b", "c", "d");
+        }
+        CachingParentChildResolver<SampleNode> resolver = new CachingParentChildResolver<>(delegate, 1000, true);
+        Map<SampleNode, Boolean> seen = new ConcurrentHashMap<>();
+        List<SampleNode> nodes = StreamSupport.stream(new DfsTreeSpliterator<>(root, resolver), true)
+                .peek(n -> seen.put(n, Boolean.TRUE)).collect(Collectors.toList());
+
+        List<SampleNode> expected = StreamSupport
+                .stream(new DfsTreeSpliterator<>(root, new TreeNode.Resolver<SampleNode>()), false)
+                .collect(Collectors.toList());
+        assertEquals(expected, nodes);
+        assertEquals(expected.size(), seen.size());
+        // the splits keep the resolved children: each node is resolved once
+        assertEquals(0, resolver.getHitCount());
+        assertEquals(expected.size(), resolver.getMissCount());
+    }
+
+    private static class CountingResolver extends TreeNode.Resolver<SampleNode> {
+
+        final AtomicInteger childrenCalls = new AtomicInteger();
+        final AtomicInteger parentCalls = new AtomicInteger();
+
+        @Override
+        public List<SampleNode> getChildren(SampleNode node) {
+            childrenCalls.incrementAndGet();
+            return super.getChildren(node);
+        }
+
+        @Override
+        public SampleNode getParent(SampleNode node) {
+            parentCalls.incrementAndGet();
+            return super.getParent(node);
+        }
+    }
+}
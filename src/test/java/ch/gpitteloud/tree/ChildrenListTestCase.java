@@ -216,6 +216,44 @@ public class ChildrenListTestCase {
         assertEquals(c3, children.get(3).getValue());
     }
 
+    @Test
+    public void indexesKeptInSynch() throws Exception {
+        SampleNode parent = SampleNode.createTree("parent", "child0", "child1", "child2", "child3");
+        List<SampleNode> children = parent.getChildren();
+
+        children.add(1, new SampleNode("new1"));
+        children.remove(3);
+        children.set(0, new SampleNode("new0"));
+        for (ListIterator<SampleNode> i = children.listIterator(0); i.hasNext(); ) {
+            SampleNode node = i.next();
+            if (node.getValue().equals("child1")) {
+                i.remove();
+                i.add(new SampleNode("new2"));
+            }
+        }
+
+        verifyChildrenNodes(parent, children.toArray(new SampleNode[0]));
+        for (int i = 0; i < children.size(); i++) {
+            assertEquals(i, children.indexOf(children.get(i)));
+            assertEquals(i, children.lastIndexOf(children.get(i)));
+        }
+    }
+
+    @Test
+    public void membershipThroughParent() throws Exception {
+        SampleNode parent = SampleNode.createTree("parent", "child0");
+        SampleNode other = SampleNode.createTree("other", "child0");
+        SampleNode otherChild = other.getChildAt(0);
+
+        assertTrue(parent.getChildren().contains(parent.getChildAt(0)));
+        assertFalse(parent.getChildren().contains(otherChild));
+        assertFalse(parent.getChildren().contains("child0"));
+        assertEquals(-1, parent.getChildren().indexOf(otherChild));
+        assertTrue(parent.getChildren().containsAll(parent.getChildren()));
+        assertFalse(parent.getChildren().containsAll(other.getChildren()));
+        assertFalse(parent.getChildren().add(parent.getChildAt(0)));
+    }
+
     @Test
     public void addFailingSetParentKeepsListInSynch() throws Exception {
         SampleNode p = new SampleNode("parent");
@@ -415,6 +453,94 @@ public class ChildrenListTestCase {
         }
     }
 
+    @Test
+    public void addAllFailingIsAtomic() throws Exception {
+        SampleNode p = new SampleNode("parent");
+        SampleNode node = new SampleNode("node");
+        p.addChild(node);
+        SampleNode free = new SampleNode("free");
+
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+        try {
+            root.getChildren().addAll(Arrays.asList(free, node));
+            fail("did not fail");
+        } catch (IllegalStateException e) {
+            verifyStateAfterAddException(node, root, p);
+            verifyDisconnectedChild(free);
+        }
+    }
+
+    @Test
+    public void clearFailingIsAtomic() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "node", "c1");
+        root.getChildAt(1).setCurrent(true);
+        try {
+            root.getChildren().clear();
+            fail("clear should fail");
+        } catch (IllegalStateException e) {
+            assertEquals(3, root.getChildren().size());
+            verifyChildrenNodes(root, root.getChildren().toArray(new SampleNode[0]));
+        }
+    }
+
+    @Test
+    public void removeAllAndRetainAll() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1", "c2", "c3", "c4");
+        SampleNode c1 = root.getChildAt(1);
+        SampleNode c3 = root.getChildAt(3);
+        List<SampleNode> children = root.getChildren();
+
+        assertTrue(children.removeAll(Arrays.asList(c1, c3, new SampleNode("other"))));
+        verifyDisconnectedChild(c1);
+        verifyDisconnectedChild(c3);
+        assertEquals(3, children.size());
+        verifyChildrenNodes(root, children.toArray(new SampleNode[0]));
+
+        SampleNode c2 = root.getChildAt(1);
+        assertTrue(children.retainAll(Arrays.asList(c2)));
+        verifyChildrenNodes(root, c2);
+        assertFalse(children.retainAll(Arrays.asList(c2)));
+
+        c2.setCurrent(true);
+        children.add(c1);
+        try {
+            children.removeIf(n -> true);
+            fail("removeIf should fail");
+        } catch (IllegalStateException e) {
+            verifyChildrenNodes(root, c2, c1);
+        }
+    }
+
+    @Test
+    public void setChildren() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1", "c2");
+        SampleNode c0 = root.getChildAt(0);
+        SampleNode c1 = root.getChildAt(1);
+        SampleNode c2 = root.getChildAt(2);
+        SampleNode n = new SampleNode("n");
+
+        root.setChildren(Arrays.asList(c2, n, c0));
+        verifyChildrenNodes(root, c2, n, c0);
+        verifyDisconnectedChild(c1);
+
+        // c2 cannot be removed, n is not added
+        c2.setCurrent(true);
+        try {
+            root.setChildren(Arrays.asList(c1, c0));
+            fail("setChildren should fail");
+        } catch (IllegalStateException e) {
+            verifyChildrenNodes(root, c2, n, c0);
+            verifyDisconnectedChild(c1);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setChildrenDuplicateFails() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0");
+        SampleNode n = new SampleNode("n");
+        root.setChildren(Arrays.asList(n, n));
+    }
+
     private void assertEachChildIsConnectedToItsParent(SampleNode parent) {
         for (SampleNode node : parent.getChildren()) {
             assertSame(parent, node.getParent());
@@ -0,0 +1,126 @@
+package ch.gpitteloud.tree;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CompactTree}
+ *
+ * @author Gaëtan Pitteloud
+ */
+public class CompactTreeTestCase {
+
+    private SampleNode root;
+    private CompactTree<SampleNode> tree;
+
+    @Before
+    public void setUp() throws Exception {
+        root = SampleNode.createTree("root", "c0", "c1", "c2");
+        root.getChildAt(0).createChildren("c00", "c01", "c02");
+        root.getChildAt(1).createChildren("c10", "c11");
+        root.getChildAt(2).createChildren("c20");
+        root.getChildAt(0).getChildAt(1).createChildren("c010", "c011");
+        root.getChildAt(1).getChildAt(1).createChildren("c110");
+        tree = CompactTree.of(root, new TreeNode.Resolver<>());
+    }
+
+    @Test
+    public void emptyTree() throws Exception {
+        CompactTree<SampleNode> empty = CompactTree.of(null, new TreeNode.Resolver<SampleNode>());
+        assertEquals(0, empty.size());
+        assertFalse(empty.iterator(ExplorationMode.BFS).hasNext());
+        assertFalse(empty.postOrderIterator().hasNext());
+    }
+
+    @Test
+    public void structure() throws Exception {
+        assertEquals(13, tree.size());
+        assertSame(root, tree.get(0));
+        assertEquals(-1, tree.getParent(0));
+        assertEquals(13, tree.getSubtreeSize(0));
+
+        // c0 is at index 1, its subtree is c0, c00, c01, c010, c011, c02
+        assertEquals("c0", tree.get(1).getValue());
+        assertEquals(6, tree.getSubtreeSize(1));
+        assertEquals(2, tree.getFirstChild(1));
+        assertEquals(3, tree.getNextSibling(2));
+        assertEquals(6, tree.getNextSibling(3));
+        assertEquals(-1, tree.getNextSibling(6));
+        assertEquals(7, tree.getNextSibling(1));
+        assertEquals(1, tree.getParent(6));
+        assertEquals(-1, tree.getFirstChild(6));
+    }
+
+    @Test
+    public void sameOrdersAsIterators() throws Exception {
+        for (ExplorationMode mode : ExplorationMode.values()) {
+            assertEquals(toList(root.iterator(mode)), toList(tree.iterator(mode)));
+        }
+        assertEquals(toList(root.getReverseIterator()), toList(tree.postOrderIterator()));
+    }
+
+    @Test
+    public void resolverView() throws Exception {
+        SubtreeSizeResolver<SampleNode> resolver = tree.getResolver();
+        SampleNode c1 = root.getChildAt(1);
+        assertEquals(resolver.getChildren(c1), c1.getChildren());
+        assertSame(root, resolver.getParent(c1));
+        assertNull(resolver.getParent(root));
+        assertEquals(4, resolver.getSubtreeSize(c1));
+
+        Spliterator<SampleNode> spliterator = new DfsTreeSpliterator<>(root, resolver);
+        assertEquals(13, spliterator.getExactSizeIfKnown());
+        List<SampleNode> nodes = StreamSupport.stream(spliterator, true).collect(Collectors.toList());
+        assertEquals(toList(tree.iterator(ExplorationMode.DFS)), nodes);
+    }
+
+    @Test
+    public void resolverViewAllNodes() throws Exception {
+        SubtreeSizeResolver<SampleNode> resolver = tree.getResolver();
+        for (int i = 0; i < tree.size(); i++) {
+            SampleNode node = tree.get(i);
+            assertEquals(tree.getSubtreeSize(i), resolver.getSubtreeSize(node));
+            assertEquals(new ArrayList<>(node.getChildren()), resolver.getChildren(node));
+        }
+    }
+
+    @Test
+    public void sharedNodes() throws Exception {
+        // s is shared by a and b: copied once per path, the resolver view finds the first copy
+        MapResolver graph = new MapResolver().add("r", "a", "b").add("a", "s").add("b", "s").add("s", "x");
+        CompactTree<String> shared = CompactTree.of("r", graph, true);
+        assertEquals(7, shared.size());
+        assertEquals("a", shared.getResolver().getParent("s"));
+    }
+
+    @Test
+    public void cycleDetected() throws Exception {
+        MapResolver graph = new MapResolver().add("a", "b", "c").add("c", "d").add("d", "a");
+        try {
+            CompactTree.of("a", graph, true);
+            fail();
+        } catch (CycleInTreeException e) {
+            assertEquals("a", e.getNode());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resolverViewUnknownNode() throws Exception {
+        tree.getResolver().getChildren(new SampleNode("other"));
+    }
+
+    private static List<SampleNode> toList(Iterator<SampleNode> iterator) {
+        List<SampleNode> nodes = new ArrayList<>();
+        iterator.forEachRemaining(nodes::add);
+        return nodes;
+    }
+}
@@ -3,8 +3,18 @@ package ch.gpitteloud.tree;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static ch.gpitteloud.tree.ExplorationMode.BFS;
 import static ch.gpitteloud.tree.ExplorationMode.DFS;
@@ -57,6 +67,20 @@ public class DefaultTreeIteratorTestCase {
         assertIterationOrder(it, root, c0, c00, c01, c1, c10, c11);
     }
 
+    @Test
+    public void currentDepth() throws Exception {
+        SampleNode c000 = new SampleNode("c000");
+        c00.addChild(c000);
+        for (ExplorationMode mode : ExplorationMode.values()) {
+            DefaultTreeIterator<SampleNode> it = new DefaultTreeIterator<>(mode, c0, new TreeNode.Resolver<>());
+            assertEquals(-1, it.currentDepth());
+            while (it.hasNext()) {
+                SampleNode node = it.next();
+                assertEquals(node.getDepth() - c0.getDepth(), it.currentDepth());
+            }
+        }
+    }
+
     private void assertIterationOrder(Iterator<SampleNode> i, SampleNode... expectedNodes) {
         for (SampleNode node : expectedNodes) {
             assertTrue(i.hasNext());
@@ -113,4 +137,267 @@ public class DefaultTreeIteratorTestCase {
         assertTrue(c1.getChildren().contains(c11));
     }
 
+    @Test
+    public void skipChildrenResolvesChildrenOnce() throws Exception {
+        CountingResolver resolver = new CountingResolver();
+        for (ExplorationMode mode : ExplorationMode.values()) {
+            resolver.counts.clear();
+            DefaultTreeIterator<SampleNode> it = new DefaultTreeIterator<>(mode, root, resolver);
+            while (it.hasNext()) {
+                SampleNode node = it.next();
+                if (node == c0 || node == c1) {
+                    it.skipChildren();
+                }
+            }
+            assertEquals(3, resolver.counts.size());
+            for (int count : resolver.counts.values()) {
+                assertEquals(1, count);
+            }
+        }
+    }
+
+    @Test
+    public void cycleDetected() throws Exception {
+        MapResolver resolver = new MapResolver().add("a", "b", "c").add("c", "d", "e").add("e", "f", "a");
+        for (ExplorationMode mode : ExplorationMode.values()) {
+            DefaultTreeIterator<String> it = new DefaultTreeIterator<>(mode, "a", resolver);
+            it.setCycleDetection(true);
+            try {
+                while (it.hasNext()) {
+                    it.next();
+                }
+                fail("Cycle not detected in " + mode);
+            } catch (CycleInTreeException e) {
+                assertEquals("a", e.getNode());
+                assertEquals(3, it.currentDepth());
+            }
+        }
+    }
+
+    @Test
+    public void selfCycleDetected() throws Exception {
+        DefaultTreeIterator<String> it = new DefaultTreeIterator<>(DFS, "a", new MapResolver().add("a", "b", "a"));
+        it.setCycleDetection(true);
+        assertEquals("a", it.next());
+        assertEquals("b", it.next());
+        try {
+            it.next();
+            fail();
+        } catch (CycleInTreeException e) {
+            assertEquals("a", e.getNode());
+        }
+    }
+
+    @Test
+    public void sharedNodeIsNotCycle() throws Exception {
+        MapResolver resolver = new MapResolver().add("a", "b", "c").add("b", "d").add("c", "d").add("d", "e");
+        for (ExplorationMode mode : ExplorationMode.values()) {
+            DefaultTreeIterator<String> it = new DefaultTreeIterator<>(mode, "a", resolver);
+            it.setCycleDetection(true);
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            assertEquals(7, count);
+        }
+    }
+
+    @Test
+    public void cycleInSkippedChildrenIgnored() throws Exception {
+        DefaultTreeIterator<String> it = new DefaultTreeIterator<>(BFS, "a",
+                new MapResolver().add("a", "b", "c").add("b", "a").add("c", "d"));
+        it.setCycleDetection(true);
+        assertEquals("a", it.next());
+        assertEquals("b", it.next());
+        it.skipChildren();
+        assertEquals("c", it.next());
+        assertEquals("d", it.next());
+        assertFalse(it.hasNext());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cycleDetectionAfterNext() throws Exception {
+        DefaultTreeIterator<SampleNode> it = new DefaultTreeIterator<>(DFS, root, new TreeNode.Resolver<>());
+        it.next();
+        it.setCycleDetection(true);
+    }
+
+    @Test
+    public void visitedNodesDfs() throws Exception {
+        MapResolver resolver = new MapResolver().add("a", "b", "c").add("b", "d").add("c", "d", "f").add("d", "e");
+        DefaultTreeIterator<String> it = new DefaultTreeIterator<>(DFS, "a", resolver);
+        it.setVisitedNodes(VisitedNodes.identity());
+        assertTraversal(it, "a", "b", "d", "e", "c", "f");
+    }
+
+    @Test
+    public void visitedNodesBfs() throws Exception {
+        MapResolver resolver = new MapResolver().add("a", "b", "c").add("b", "d").add("c", "d", "f").add("d", "e");
+        DefaultTreeIterator<String> it = new DefaultTreeIterator<>(BFS, "a", resolver);
+        it.setVisitedNodes(VisitedNodes.identity());
+        assertTraversal(it, "a", "b", "c", "d", "f", "e");
+    }
+
+    @Test
+    public void visitedNodesSkipChildren() throws Exception {
+        MapResolver resolver = new MapResolver().add("a", "b", "c").add("b", "d").add("c", "d").add("d", "e");
+        DefaultTreeIterator<String> it = new DefaultTreeIterator<>(DFS, "a", resolver);
+        it.setVisitedNodes(VisitedNodes.identity());
+        assertEquals("a", it.next());
+        assertEquals("b", it.next());
+        it.skipChildren();
+        assertTraversal(it, "c", "d", "e");
+    }
+
+    @Test
+    public void visitedNodesSharedSubtreesTraversedOnce() throws Exception {
+        // a chain of 30 diamonds: traversing all paths would require 2^30 steps
+        int diamonds = 30;
+        String[] joins = new String[diamonds + 1];
+        for (int i = 0; i <= diamonds; i++) {
+            joins[i] = "n" + i;
+        }
+        MapResolver resolver = new MapResolver();
+        for (int i = 0; i < diamonds; i++) {
+            String left = "l" + i;
+            String right = "r" + i;
+            resolver.add(joins[i], left, right).add(left, joins[i + 1]).add(right, joins[i + 1]);
+        }
+        Map<String, Integer> ids = new HashMap<>();
+        for (ExplorationMode mode : ExplorationMode.values()) {
+            for (VisitedNodes<String> visitedNodes : Arrays.asList(VisitedNodes.<String>identity(),
+                    VisitedNodes.<String>bitSet(node -> ids.computeIfAbsent(node, n -> ids.size())))) {
+                DefaultTreeIterator<String> it = new DefaultTreeIterator<>(mode, joins[0], resolver);
+                it.setVisitedNodes(visitedNodes);
+                int count = 0;
+                while (it.hasNext()) {
+                    it.next();
+                    count++;
+                }
+                assertEquals(3 * diamonds + 1, count);
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void visitedNodesAfterNext() throws Exception {
+        DefaultTreeIterator<SampleNode> it = new DefaultTreeIterator<>(DFS, root, new TreeNode.Resolver<>());
+        it.next();
+        it.setVisitedNodes(VisitedNodes.identity());
+    }
+
+    @Test
+    public void childResolverParents() throws Exception {
+        MapResolver graph = new MapResolver().add("r", "a", "b").add("a", "s").add("b", "s");
+        DefaultTreeIterator<String> it = new DefaultTreeIterator<>(DFS, "r", graph::getChildren);
+        assertNull(it.currentParent());
+
+        List<String> nodes = new ArrayList<>();
+        while (it.hasNext()) {
+            String node = it.next();
+            nodes.add(it.currentParent() + ">" + node);
+        }
+        assertEquals(Arrays.asList("null>r", "r>a", "a>s", "r>b", "b>s"), nodes);
+    }
+
+    @Test
+    public void childResolverRemove() throws Exception {
+        MapResolver graph = new MapResolver().add("r", "a", "b").add("a", "x");
+        DefaultTreeIterator<String> it = new DefaultTreeIterator<>(BFS, "r", graph::getChildren);
+        assertEquals("r", it.next());
+        assertEquals("a", it.next());
+        it.remove();
+        assertEquals("r", it.currentParent());
+        assertEquals("b", it.next());
+        assertFalse(it.hasNext());
+        assertEquals(Arrays.asList("b"), graph.getChildren("r"));
+    }
+
+    @Test
+    public void removeFromTrackedParent() throws Exception {
+        // s is shared by a and b, and its resolved parent is a
+        MapResolver graph = new MapResolver().add("r", "a", "b").add("a", "s").add("b", "s");
+        DefaultTreeIterator<String> it = new DefaultTreeIterator<>(DFS, "r", graph);
+        while (it.hasNext()) {
+            if (it.next().equals("s") && it.currentParent().equals("b")) {
+                it.remove();
+            }
+        }
+        assertEquals(Arrays.asList("s"), graph.getChildren("a"));
+        assertTrue(graph.getChildren("b").isEmpty());
+    }
+
+    @Test
+    public void prefetch() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (ExplorationMode mode : ExplorationMode.values()) {
+                List<SampleNode> expected = new ArrayList<>();
+                root.iterator(mode).forEachRemaining(expected::add);
+
+                Set<Thread> threads = ConcurrentHashMap.newKeySet();
+                Map<SampleNode, Integer> counts = new ConcurrentHashMap<>();
+                TreeNode.Resolver<SampleNode> resolver = new TreeNode.Resolver<SampleNode>() {
+                    @Override
+                    public List<SampleNode> getChildren(SampleNode node) {
+                        threads.add(Thread.currentThread());
+                        counts.merge(node, 1, Integer::sum);
+                        return super.getChildren(node);
+                    }
+                };
+                DefaultTreeIterator<SampleNode> it = new DefaultTreeIterator<>(mode, root, resolver);
+                it.setPrefetch(executor, 3);
+                List<SampleNode> nodes = new ArrayList<>();
+                it.forEachRemaining(nodes::add);
+
+                assertEquals(expected, nodes);
+                assertFalse(threads.contains(Thread.currentThread()));
+                assertEquals(expected.size(), counts.size());
+                for (int count : counts.values()) {
+                    assertEquals(1, count);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void prefetchSkipChildren() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DefaultTreeIterator<SampleNode> it = new DefaultTreeIterator<>(DFS, root, new TreeNode.Resolver<>());
+            it.setPrefetch(executor, 4);
+            assertSame(root, it.next());
+            assertSame(c0, it.next());
+            it.skipChildren();
+            assertSame(c1, it.next());
+            assertSame(c10, it.next());
+            assertSame(c11, it.next());
+            assertFalse(it.hasNext());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertTraversal(Iterator<String> it, String... expected) {
+        for (String node : expected) {
+            assertTrue(it.hasNext());
+            assertEquals(node, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    private static class CountingResolver extends TreeNode.Resolver<SampleNode> {
+
+        private final Map<SampleNode, Integer> counts = new IdentityHashMap<>();
+
+        @Override
+        public List<SampleNode> getChildren(SampleNode node) {
+            counts.merge(node, 1, Integer::sum);
+            return super.getChildren(node);
+        }
+    }
+
 }
@@ -7,10 +7,16 @@ import org.junit.Test;
 import org.junit.rules.TestName;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -153,6 +159,193 @@ public class DfsTreeSpliteratorTestCase {
         stream.forEach(c);
     }
 
+    @Test
+    public void sized() throws Exception {
+        final DfsTreeSpliterator<SampleNode> s0 = createSpliterator();
+        assertTrue(s0.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        assertEquals(expectedCount, s0.estimateSize());
+
+        consumeOne(s0);
+        assertEquals(expectedCount - 1, s0.estimateSize());
+
+        final Spliterator<SampleNode> s1 = s0.trySplit();
+        assertNotNull(s1);
+        assertTrue(s1.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        assertEquals(expectedCount - 1, s0.estimateSize() + s1.estimateSize());
+
+        assertExactSize(s0);
+        assertExactSize(s1);
+        verifyCount();
+    }
+
+    @Test
+    public void balancedSplit() throws Exception {
+        // first child of root has a large subtree, the next ones are leaves
+        SampleNode large = root.getChildAt(0);
+        root.getChildAt(1).getChildren().clear();
+        root.getChildAt(2).getChildren().clear();
+        root.createChildren("leaf0", "leaf1", "leaf2", "leaf3");
+        expectedCount = root.getSubtreeSize();
+
+        final DfsTreeSpliterator<SampleNode> s0 = createSpliterator();
+        consumeOne(s0);
+        // siblings split: only the large subtree is forked
+        final Spliterator<SampleNode> s1 = s0.trySplit();
+        assertEquals(large.getSubtreeSize(), s1.estimateSize());
+        assertEquals(6, s0.estimateSize());
+
+        assertExactSize(s0);
+        assertExactSize(s1);
+        verifyCount();
+    }
+
+    @Test
+    public void unknownSize() throws Exception {
+        ParentChildResolver<SampleNode> resolver = new ParentChildResolver<SampleNode>() {
+            @Override
+            public List<SampleNode> getChildren(SampleNode node) {
+                return node.getChildren();
+            }
+
+            @Override
+            public SampleNode getParent(SampleNode node) {
+                return node.getParent();
+            }
+        };
+        final DfsTreeSpliterator<SampleNode> s0 = new DfsTreeSpliterator<>(root, resolver);
+        assertFalse(s0.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(Long.MAX_VALUE, s0.estimateSize());
+
+        final Spliterator<SampleNode> s1 = s0.trySplit();
+        assertEquals(Long.MAX_VALUE, s1.estimateSize());
+        consumeAll(s0);
+        consumeAll(s1);
+        verifyCount();
+    }
+
+    @Test
+    public void splitWithPendingUpperLevels() throws Exception {
+        root = SampleNode.createTree("root", "a", "b");
+        root.getChildAt(0).createChildren("a1");
+        root.getChildAt(0).getChildAt(0).createChildren("x", "y");
+
+        final DfsTreeSpliterator<SampleNode> s0 = createSpliterator();
+        List<String> values = new ArrayList<>();
+        s0.tryAdvance(n -> values.add(n.getValue()));
+        s0.tryAdvance(n -> values.add(n.getValue()));
+
+        // current is a1, the last child of a, but b remains
+        final Spliterator<SampleNode> s1 = s0.trySplit();
+        assertNotNull(s1);
+        assertEquals(3, s1.estimateSize());
+        assertEquals(1, s0.estimateSize());
+        s1.forEachRemaining(n -> values.add(n.getValue()));
+        s0.forEachRemaining(n -> values.add(n.getValue()));
+
+        assertEquals(Arrays.asList("root", "a", "a1", "x", "y", "b"), values);
+    }
+
+    @Test
+    public void parallelOrder() throws Exception {
+        List<SampleNode> expected = new ArrayList<>();
+        root.iterator(ExplorationMode.DFS).forEachRemaining(expected::add);
+
+        List<SampleNode> nodes = StreamSupport.stream(createSpliterator(), true).collect(Collectors.toList());
+        assertEquals(expected, nodes);
+        assertArrayEquals(expected.toArray(), StreamSupport.stream(createSpliterator(), true).toArray());
+    }
+
+    @Test
+    public void cycleDetected() throws Exception {
+        MapResolver resolver = new MapResolver().add("a", "b", "c", "d").add("c", "e", "f").add("f", "g", "c");
+        try {
+            StreamSupport.stream(new DfsTreeSpliterator<>("a", resolver, true), true).count();
+            fail();
+        } catch (CycleInTreeException e) {
+            assertEquals("c", e.getNode());
+        }
+    }
+
+    @Test(expected = CycleInTreeException.class)
+    public void cycleDetectedInSingleBranch() throws Exception {
+        MapResolver resolver = new MapResolver().add("a", "b").add("b", "c").add("c", "a");
+        new DfsTreeSpliterator<>("a", resolver, true).trySplit();
+    }
+
+    @Test
+    public void splitsDoNotResolveAgain() throws Exception {
+        // a single branch down to a node with many children, that have many children
+        MapResolver map = new MapResolver().add("root", "a").add("a", "b").add("b", "c1", "c2", "c3", "c4");
+        for (int i = 1; i <= 4; i++) {
+            map.add("c" + i, "c" + i + "-1", "c" + i + "-2", "c" + i + "-3");
+        }
+        Map<String, AtomicInteger> resolutions = new ConcurrentHashMap<>();
+        AtomicInteger parentResolutions = new AtomicInteger();
+        ParentChildResolver<String> resolver = new ParentChildResolver<String>() {
+            @Override
+            public List<String> getChildren(String node) {
+                resolutions.computeIfAbsent(node, n -> new AtomicInteger()).incrementAndGet();
+                return map.getChildren(node);
+            }
+
+            @Override
+            public String getParent(String node) {
+                parentResolutions.incrementAndGet();
+                return map.getParent(node);
+            }
+        };
+
+        List<String> nodes = StreamSupport.stream(new DfsTreeSpliterator<>("root", resolver), true)
+                .collect(Collectors.toList());
+        assertEquals(19, nodes.size());
+        assertEquals(0, parentResolutions.get());
+        for (Map.Entry<String, AtomicInteger> entry : resolutions.entrySet()) {
+            assertEquals(entry.getKey(), 1, entry.getValue().get());
+        }
+    }
+
+    @Test
+    public void visitedNodesInParallel() throws Exception {
+        // every node of a level is the parent of every node of the next level
+        int levels = 8;
+        int width = 6;
+        List<String> previous = Collections.singletonList("root");
+        MapResolver resolver = new MapResolver();
+        List<String> all = new ArrayList<>(previous);
+        for (int l = 0; l < levels; l++) {
+            List<String> level = new ArrayList<>();
+            for (int i = 0; i < width; i++) {
+                level.add(l + "-" + i);
+            }
+            for (String parent : previous) {
+                resolver.add(parent, level.toArray(new String[width]));
+            }
+            all.addAll(level);
+            previous = level;
+        }
+        Map<String, Integer> ids = new ConcurrentHashMap<>();
+        for (int i = 0; i < all.size(); i++) {
+            ids.put(all.get(i), i);
+        }
+
+        for (VisitedNodes<String> visitedNodes : Arrays.asList(VisitedNodes.<String>concurrentIdentity(),
+                VisitedNodes.<String>concurrentBitSet(ids::get, all.size()))) {
+            DfsTreeSpliterator<String> s = new DfsTreeSpliterator<>("root", resolver, false, visitedNodes);
+            assertFalse(s.hasCharacteristics(Spliterator.SIZED));
+            List<String> nodes = StreamSupport.stream(s, true).collect(Collectors.toList());
+            assertEquals(all.size(), nodes.size());
+            assertEquals(new HashSet<>(all), new HashSet<>(nodes));
+        }
+    }
+
+    private void assertExactSize(Spliterator<SampleNode> s) {
+        long size = s.estimateSize();
+        int before = counter.get();
+        consumeAll(s);
+        assertEquals(size, counter.get() - before);
+        assertEquals(0, s.estimateSize());
+    }
+
     private DfsTreeSpliterator<SampleNode> createSpliterator() {
         final DfsTreeSpliterator<SampleNode> s = new DfsTreeSpliterator<>(root, new TreeNode.Resolver<>());
         log("Creating spliterator starting on " + root + " : " + toString(s));
@@ -0,0 +1,38 @@
+package ch.gpitteloud.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A resolver of string nodes, with the children of each node held in a map, so that structures that are not trees
+ * (cycles, shared nodes) can be built. The parent of a node is the first node it was added to.
+ *
+ * @author Gaëtan Pitteloud
+ */
+class MapResolver implements ParentChildResolver<String> {
+
+    private final Map<String, List<String>> children = new HashMap<>();
+    private final Map<String, String> parents = new HashMap<>();
+
+    MapResolver add(String parent, String... nodes) {
+        children.computeIfAbsent(parent, p -> new ArrayList<>()).addAll(Arrays.asList(nodes));
+        for (String node : nodes) {
+            parents.putIfAbsent(node, parent);
+        }
+        return this;
+    }
+
+    @Override
+    public List<String> getChildren(String node) {
+        return children.getOrDefault(node, Collections.<String>emptyList());
+    }
+
+    @Override
+    public String getParent(String node) {
+        return parents.get(node);
+    }
+}
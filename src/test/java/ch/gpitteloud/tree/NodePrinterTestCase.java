@@ -0,0 +1,147 @@
+package ch.gpitteloud.tree;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link NodePrinter}
+ *
+ * @author Gaëtan Pitteloud
+ */
+public class NodePrinterTestCase {
+
+    private NodePrinter<SampleNode> printer = new NodePrinter<>(new TreeNode.Resolver<>(), SampleNode::getValue);
+
+    @Test
+    public void nullRootNode() throws Exception {
+        assertEquals("", printer.toString(null));
+    }
+
+    @Test
+    public void onlyRoot() throws Exception {
+        assertEquals("root\n", printer.toString(new SampleNode("root")));
+    }
+
+    @Test
+    public void layout() throws Exception {
+        assertEquals("root\n"
+                + "+- c0\n"
+                + "|  +- c00\n"
+                + "|  |  \\- c000\n"
+                + "|  \\- c01\n"
+                + "|     \\- c010\n"
+                + "\\- c1\n"
+                + "   +- c10\n"
+                + "   \\- c11\n", printer.toString(createTree()));
+    }
+
+    @Test
+    public void innerNodeKeepsAncestorsPrefix() throws Exception {
+        SampleNode c01 = createTree().getChildAt(0).getChildAt(1);
+        assertEquals("|  \\- c01\n"
+                + "|     \\- c010\n", printer.toString(c01));
+
+        // without parents, the node is printed as a root
+        NodePrinter<SampleNode> childPrinter = new NodePrinter<>(SampleNode::getChildren, SampleNode::getValue);
+        assertEquals("c01\n"
+                + "\\- c010\n", childPrinter.toString(c01));
+    }
+
+    @Test
+    public void resolverAccessors() throws Exception {
+        NodePrinter<String> printer = new NodePrinter<String>(n -> Collections.emptyList()) {
+            {
+                assertNotNull(getChildResolver());
+                try {
+                    getResolver();
+                    fail();
+                } catch (UnsupportedOperationException e) {
+                    // not a parent-child resolver
+                }
+            }
+        };
+        assertEquals("root\n", printer.toString("root"));
+        TreeNode.Resolver<SampleNode> resolver = new TreeNode.Resolver<>();
+        new NodePrinter<SampleNode>(resolver) {
+            {
+                assertSame(resolver, getResolver());
+                assertSame(resolver, getChildResolver());
+            }
+        };
+    }
+
+    @Test
+    public void childResolver() throws Exception {
+        MapResolver graph = new MapResolver().add("root", "c0", "c1").add("c0", "c00");
+        NodePrinter<String> printer = new NodePrinter<>(graph::getChildren);
+        assertEquals("root\n"
+                + "+- c0\n"
+                + "|  \\- c00\n"
+                + "\\- c1\n", printer.toString("root"));
+    }
+
+    @Test
+    public void customChars() throws Exception {
+        printer.setBeforeNodeChar('=');
+        printer.setSep('.');
+        printer.setLinkToNextChildChar(':');
+        printer.setLinkToCurrentChildChar('*');
+        printer.setLastChildChar('`');
+
+        assertEquals("root\n"
+                + "*=.c0\n"
+                + ":..*=.c00\n"
+                + ":..:..`=.c000\n"
+                + ":..`=.c01\n"
+                + ":.....`=.c010\n"
+                + "`=.c1\n"
+                + "...*=.c10\n"
+                + "...`=.c11\n", printer.toString(createTree()));
+    }
+
+    @Test
+    public void printToWriter() throws Exception {
+        SampleNode root = createTree();
+        StringWriter writer = new StringWriter();
+
+        printer.print(root, writer);
+
+        assertEquals(printer.toString(root), writer.toString());
+    }
+
+    @Test
+    public void deepTree() throws Exception {
+        SampleNode root = new SampleNode("0");
+        SampleNode node = root;
+        int depth = 1000;
+        for (int i = 1; i < depth; i++) {
+            SampleNode child = new SampleNode(Integer.toString(i));
+            node.addChild(child);
+            node = child;
+        }
+
+        String[] lines = printer.toString(root).split("\n");
+
+        assertEquals(depth, lines.length);
+        StringBuilder expectedLastLine = new StringBuilder();
+        for (int i = 2; i < depth; i++) {
+            expectedLastLine.append("   ");
+        }
+        expectedLastLine.append("\\- ").append(depth - 1);
+        assertEquals(expectedLastLine.toString(), lines[depth - 1]);
+    }
+
+    private SampleNode createTree() {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+        root.getChildAt(0).createChildren("c00", "c01");
+        root.getChildAt(0).getChildAt(0).createChildren("c000");
+        root.getChildAt(0).getChildAt(1).createChildren("c010");
+        root.getChildAt(1).createChildren("c10", "c11");
+        return root;
+    }
+
+}
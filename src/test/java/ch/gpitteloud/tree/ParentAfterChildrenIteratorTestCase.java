@@ -2,7 +2,10 @@ package ch.gpitteloud.tree;
 
 import org.junit.Test;
 
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import static org.junit.Assert.*;
@@ -96,6 +99,51 @@ public class ParentAfterChildrenIteratorTestCase {
         assertIterationAsExpected(expectedOrder, root);
     }
 
+    @Test
+    public void childrenResolvedOnceAndParentNeverResolved() throws Exception {
+        SampleNode root = createLargeTree();
+        Map<SampleNode, Integer> counts = new IdentityHashMap<>();
+        resolver = new TreeNode.Resolver<SampleNode>() {
+
+            @Override
+            public List<SampleNode> getChildren(SampleNode node) {
+                counts.merge(node, 1, Integer::sum);
+                return super.getChildren(node);
+            }
+
+            @Override
+            public SampleNode getParent(SampleNode node) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        String[] expectedOrder = new String[] { "00", "01", "02", "0", "100", "1010", "1011", "101", "10", "1", "20",
+                "210", "211", "212", "21", "2", "root" };
+        assertIterationAsExpected(expectedOrder, root);
+        assertEquals(expectedOrder.length, counts.size());
+        for (int count : counts.values()) {
+            assertEquals(1, count);
+        }
+    }
+
+    @Test
+    public void deepChain() throws Exception {
+        SampleNode root = new SampleNode("0");
+        SampleNode node = root;
+        int depth = 100000;
+        for (int i = 1; i < depth; i++) {
+            SampleNode child = new SampleNode(Integer.toString(i));
+            node.addChild(child);
+            node = child;
+        }
+
+        Iterator<SampleNode> i = createIterator(root);
+        for (int expected = depth - 1; expected >= 0; expected--) {
+            assertEquals(Integer.toString(expected), i.next().getValue());
+        }
+        assertFalse(i.hasNext());
+    }
+
     private void assertIterationAsExpected(String[] expectedOrder, SampleNode root) {
         int index = 0;
         Iterator<SampleNode> i = createIterator(root);
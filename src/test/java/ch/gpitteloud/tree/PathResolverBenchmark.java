@@ -0,0 +1,68 @@
+package ch.gpitteloud.tree;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Compare a walk of the files with {@link PathResolver} (sequential and parallel) to {@link Files#walk}, counting the
+ * regular files, i.e. filtering on the attributes of each file. Not a unit test: run it with the root directory as
+ * argument (the working directory by default), on a tree large enough to be meaningful.
+ *
+ * @author Gaëtan Pitteloud
+ */
+public class PathResolverBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        Path root = Paths.get(args.length > 0 ? args[0] : ".");
+
+        run("Files.walk", () -> {
+            try (Stream<Path> paths = Files.walk(root)) {
+                return paths.filter(p -> Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)).count();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        run("PathResolver", () -> {
+            PathResolver resolver = new PathResolver();
+            return resolver.walk(root, false).filter(p -> resolver.getAttributes(p).isRegularFile()).count();
+        });
+        run("PathResolver, parallel", () -> {
+            PathResolver resolver = new PathResolver();
+            return resolver.walk(root, true).filter(p -> resolver.getAttributes(p).isRegularFile()).count();
+        });
+        run("Files.walk, readAttributes", () -> {
+            try (Stream<Path> paths = Files.walk(root)) {
+                return paths.filter(p -> {
+                    try {
+                        return Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isRegularFile();
+                    } catch (IOException e) {
+                        return false;
+                    }
+                }).count();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static void run(String name, Supplier<Long> walk) {
+        // the first run warms up the JIT and the file system cache
+        walk.get();
+        long best = Long.MAX_VALUE;
+        long count = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            count = walk.get();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-28s %8d files %8d ms", name, count, best / 1000000));
+    }
+}
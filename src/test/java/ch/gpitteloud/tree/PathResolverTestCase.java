@@ -0,0 +1,122 @@
+package ch.gpitteloud.tree;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link PathResolver}
+ *
+ * @author Gaëtan Pitteloud
+ */
+public class PathResolverTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = folder.getRoot().toPath();
+        Files.createDirectories(root.resolve("a/aa"));
+        Files.createDirectories(root.resolve("b"));
+        Files.createFile(root.resolve("a/aa/f1"));
+        Files.createFile(root.resolve("a/f2"));
+        Files.createFile(root.resolve("b/f3"));
+    }
+
+    @Test
+    public void sameFilesAsFilesWalk() throws Exception {
+        PathResolver resolver = new PathResolver();
+        assertEquals(walk(root), sorted(resolver.walk(root, false)));
+        assertEquals(walk(root), sorted(resolver.walk(root, true)));
+    }
+
+    @Test
+    public void attributesReadWithEntries() throws Exception {
+        PathResolver resolver = new PathResolver();
+        List<Path> children = resolver.getChildren(root.resolve("a"));
+        assertEquals(2, children.size());
+
+        Path f2 = root.resolve("a/f2");
+        BasicFileAttributes attributes = resolver.getAttributes(f2);
+        assertTrue(attributes.isRegularFile());
+        // from the cache, even when the file is gone
+        Files.delete(f2);
+        assertSame(attributes, resolver.getAttributes(f2));
+        assertTrue(resolver.getChildren(f2).isEmpty());
+    }
+
+    @Test
+    public void listedAttributesKeptUntilVisited() throws Exception {
+        // a single visited entry is cached, but all the listed entries are kept until visited
+        PathResolver resolver = new PathResolver(false, 1);
+        resolver.getChildren(root);
+        resolver.getChildren(root.resolve("a"));
+        resolver.getChildren(root.resolve("b"));
+
+        Path f2 = root.resolve("a/f2");
+        Path f3 = root.resolve("b/f3");
+        Files.delete(f2);
+        Files.delete(f3);
+        assertTrue(resolver.getAttributes(f2).isRegularFile());
+        assertTrue(resolver.getAttributes(f3).isRegularFile());
+
+        // f2 was evicted from the visited entries by f3
+        try {
+            resolver.getAttributes(f2);
+            fail();
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void symbolicLinkLoop() throws Exception {
+        Path link = root.resolve("a/aa/up");
+        try {
+            Files.createSymbolicLink(link, root.resolve("a"));
+        } catch (IOException | UnsupportedOperationException e) {
+            Assume.assumeNoException(e);
+        }
+        PathResolver following = new PathResolver(true, 100);
+        List<Path> paths = following.walk(root, false).collect(Collectors.toList());
+        assertTrue(paths.contains(link));
+        assertTrue(following.getChildren(link).isEmpty());
+        assertEquals(walk(root).size(), paths.size());
+
+        // not followed: the link is a leaf
+        assertEquals(walk(root), sorted(new PathResolver().walk(root, false)));
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void missingFile() throws Exception {
+        new PathResolver().getChildren(root.resolve("missing"));
+    }
+
+    private static Set<String> walk(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return sorted(paths);
+        }
+    }
+
+    private static Set<String> sorted(Stream<Path> paths) {
+        return paths.map(Path::toString).collect(Collectors.toCollection(TreeSet::new));
+    }
+}
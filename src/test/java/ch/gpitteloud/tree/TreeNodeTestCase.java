@@ -233,6 +233,90 @@ public class TreeNodeTestCase {
         assertEquals(0, root.getDepth());
     }
 
+    @Test
+    public void depthAndRootNodeFollowMoves() throws Exception {
+        SampleNode root = new SampleNode("root");
+        root.setRoot();
+        root.createChildren("c0", "c1");
+        SampleNode c0 = root.getChildAt(0);
+        c0.createChildren("c00");
+        SampleNode c00 = c0.getChildAt(0);
+        assertEquals(2, c00.getDepth());
+        assertSame(root, c00.getRootNode());
+
+        // attached below another node
+        SampleNode other = new SampleNode("other");
+        other.createChildren("o0");
+        other.getChildAt(0).addChild(c0.getChildren().remove(0));
+        assertEquals(2, c00.getDepth());
+        assertNull(c00.getRootNode());
+        assertEquals(1, c0.getDepth());
+
+        // the component left by a subtree
+        SampleNode o0 = other.getChildAt(0);
+        other.getChildren().remove(0);
+        assertEquals(0, o0.getDepth());
+        assertEquals(1, c00.getDepth());
+        assertEquals(0, other.getDepth());
+
+        root.getChildAt(1).addChild(o0);
+        assertEquals(3, c00.getDepth());
+        assertSame(root, c00.getRootNode());
+    }
+
+    @Test
+    public void depthAndSizeAfterBulkDetach() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "a");
+        root.setRoot();
+        SampleNode parent = root.getChildAt(0);
+        parent.createChildren("c0", "c1", "c2", "c3");
+        for (SampleNode child : parent.getChildren()) {
+            child.createChildren("x");
+        }
+        SampleNode c0 = parent.getChildAt(0);
+        SampleNode c3 = parent.getChildAt(3);
+        assertEquals(3, c3.getChildAt(0).getDepth());
+        assertEquals(10, root.getSubtreeSize());
+
+        // the removal fails on c2: nothing changes
+        parent.getChildAt(2).getChildAt(0).setCurrent(true);
+        try {
+            parent.getChildren().clear();
+            fail("clear should fail");
+        } catch (IllegalStateException e) {
+            assertEquals(4, parent.getChildren().size());
+            assertEquals(3, c0.getChildAt(0).getDepth());
+            assertSame(root, c0.getRootNode());
+            assertEquals(10, root.getSubtreeSize());
+        }
+
+        parent.getChildren().removeAll(Arrays.asList(c0, c3));
+        assertEquals(1, c0.getChildAt(0).getDepth());
+        assertNull(c3.getChildAt(0).getRootNode());
+        assertEquals(3, parent.getChildAt(1).getChildAt(0).getDepth());
+        assertEquals(6, root.getSubtreeSize());
+        assertEquals(2, c0.getSubtreeSize());
+    }
+
+    @Test
+    public void depthCachedByConcurrentReaders() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1", "c2", "c3");
+        for (SampleNode child : root.getChildren()) {
+            child.createChildren("a", "b", "c", "d");
+            for (SampleNode grandChild : child.getChildren()) {
+                grandChild.createChildren("x", "y", "z");
+            }
+        }
+        Tree<SampleNode> tree = new Tree<>(root);
+        assertTrue(tree.dfsStream(true).allMatch(node -> {
+            int depth = 0;
+            for (SampleNode p = node.getParent(); p != null; p = p.getParent()) {
+                depth++;
+            }
+            return node.getDepth() == depth && node.getRootNode() == root;
+        }));
+    }
+
     @Test
     public void getDepth() throws Exception {
         SampleNode root = new SampleNode("root");
@@ -265,6 +349,45 @@ public class TreeNodeTestCase {
         assertEquals(0, root.getDepth());
     }
 
+    @Test
+    public void getSubtreeSize() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1", "c2");
+        SampleNode c1 = root.getChildAt(1);
+        c1.createChildren("c10", "c11");
+        c1.getChildAt(0).createChildren("c100");
+
+        assertEquals(7, root.getSubtreeSize());
+        assertEquals(4, c1.getSubtreeSize());
+        assertEquals(1, root.getChildAt(2).getSubtreeSize());
+
+        root.getChildren().remove(c1);
+        assertEquals(3, root.getSubtreeSize());
+        assertEquals(4, c1.getSubtreeSize());
+
+        root.getChildAt(0).addChild(c1);
+        assertEquals(7, root.getSubtreeSize());
+        assertEquals(5, root.getChildAt(0).getSubtreeSize());
+    }
+
+    @Test
+    public void getSubtreeSizeMoveBetweenComponents() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+        SampleNode c1 = root.getChildAt(1);
+        c1.createChildren("c10");
+        c1.getChildAt(0).createChildren("c100");
+        SampleNode other = SampleNode.createTree("other", "o0");
+        assertEquals(5, root.getSubtreeSize());
+        assertEquals(2, other.getSubtreeSize());
+
+        SampleNode c10 = c1.getChildren().remove(0);
+        other.getChildAt(0).addChild(c10);
+        assertEquals(3, root.getSubtreeSize());
+        assertEquals(1, c1.getSubtreeSize());
+        assertEquals(4, other.getSubtreeSize());
+        assertEquals(3, other.getChildAt(0).getSubtreeSize());
+        assertEquals(2, c10.getSubtreeSize());
+    }
+
     @Test
     public void canAddReturnsFalse() throws Exception {
         final SampleNodeCannotAdd parent = new SampleNodeCannotAdd();
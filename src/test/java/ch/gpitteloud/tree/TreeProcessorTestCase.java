@@ -3,9 +3,12 @@ package ch.gpitteloud.tree;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Tests for {@link TreeProcessor}
@@ -128,6 +131,246 @@ public class TreeProcessorTestCase {
         );
     }
 
+    @Test
+    public void parentNotResolved() throws Exception {
+        rootSource.createChildren("10", "11");
+        rootSource.getChildAt(0).createChildren("100");
+        rootSource.getChildAt(1).createChildren("110");
+        rootSource.getChildAt(1).getChildAt(0).createChildren("1100");
+
+        processor = new TreeProcessor<>(new TreeNode.Resolver<SampleNode>() {
+
+            @Override
+            public SampleNode getParent(SampleNode node) {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        processNodesFromRoot();
+
+        assertThat(callback.actions).hasSize(14).containsExactly(
+                "process 1",
+                "before children 1",
+                "process 10",
+                "before children 10",
+                "process 100",
+                "after children 10",
+                "process 11",
+                "before children 11",
+                "process 110",
+                "before children 110",
+                "process 1100",
+                "after children 110",
+                "after children 11",
+                "after children 1");
+    }
+
+    @Test
+    public void parallelAroundChildren() throws Exception {
+        createWideTree(rootSource, 3, 6);
+        callback = new SynchronizedTestCallback();
+        processor.setSequentialThreshold(0);
+
+        processor.processNodesInParallel(rootSource, callback);
+
+        assertAroundChildrenOrder(rootSource);
+        // 259 nodes, 43 of which have children
+        assertThat(callback.actions).hasSize(259 + 2 * 43);
+    }
+
+    @Test
+    public void parallelBelowThreshold() throws Exception {
+        rootSource.createChildren("10", "11", "12");
+        rootSource.getChildAt(0).createChildren("100", "101");
+        rootSource.getChildAt(1).createChildren("110", "111");
+        rootSource.getChildAt(1).getChildAt(1).createChildren("1110");
+        TestCallback sequentialCallback = new TestCallback();
+        processor.processNodes(rootSource, sequentialCallback);
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            processor.setForkJoinPool(pool);
+            processor.processNodesInParallel(rootSource, callback);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertThat(callback.actions).isEqualTo(sequentialCallback.actions);
+    }
+
+    @Test
+    public void parallelSkipChildren() throws Exception {
+        createWideTree(rootSource, 3, 4);
+        callback = new SynchronizedTestCallback() {
+
+            @Override
+            public boolean processNode(SampleNode node) {
+                super.processNode(node);
+                return !node.getValue().equals("1-1");
+            }
+        };
+        processor.setSequentialThreshold(0);
+
+        processor.processNodesInParallel(rootSource, callback);
+
+        assertAroundChildrenOrder(rootSource);
+        assertThat(callback.actions).contains("process 1-1").excludes("before children 1-1", "process 1-1-0");
+    }
+
+    @Test
+    public void parallelUnknownSizes() throws Exception {
+        createWideTree(rootSource, 4, 5);
+        callback = new SynchronizedTestCallback();
+        processor = new TreeProcessor<>(new ParentChildResolver<SampleNode>() {
+
+            @Override
+            public List<SampleNode> getChildren(SampleNode node) {
+                return node.getChildren();
+            }
+
+            @Override
+            public SampleNode getParent(SampleNode node) {
+                return node.getParent();
+            }
+        });
+
+        processor.processNodesInParallel(rootSource, callback);
+
+        assertAroundChildrenOrder(rootSource);
+    }
+
+    @Test
+    public void foldNullRoot() throws Exception {
+        assertThat(processor.fold(null, SampleNode::getValue, String::concat)).isNull();
+    }
+
+    @Test
+    public void foldInChildrenOrder() throws Exception {
+        createWideTree(rootSource, 4, 5);
+        StringBuilder preOrder = new StringBuilder();
+        rootSource.iterator(ExplorationMode.DFS).forEachRemaining(n -> preOrder.append(',').append(n.getValue()));
+
+        assertThat(processor.fold(rootSource, SampleNode::getValue, (a, b) -> a + "," + b))
+                .isEqualTo(preOrder.substring(1));
+        processor.setSequentialThreshold(0);
+        assertThat(processor.fold(rootSource, SampleNode::getValue, (a, b) -> a + "," + b))
+                .isEqualTo(preOrder.substring(1));
+    }
+
+    @Test
+    public void foldPrimitives() throws Exception {
+        createWideTree(rootSource, 4, 6);
+        processor.setSequentialThreshold(10);
+
+        assertThat(processor.foldToLong(rootSource, n -> 1L, Long::sum)).isEqualTo(rootSource.getSubtreeSize());
+        assertThat(processor.foldToInt(rootSource, SampleNode::getDepth, Math::max)).isEqualTo(4);
+        assertThat(processor.foldToDouble(rootSource, n -> 0.5, Double::sum))
+                .isEqualTo(rootSource.getSubtreeSize() / 2.0);
+        assertThat(processor.foldToLong(rootSource.getChildAt(0).getChildAt(0).getChildAt(0).getChildAt(0),
+                n -> 7L, Long::sum)).isEqualTo(7L);
+    }
+
+    @Test
+    public void foldUnknownSizes() throws Exception {
+        createWideTree(rootSource, 5, 5);
+        processor = new TreeProcessor<>(new ParentChildResolver<SampleNode>() {
+
+            @Override
+            public List<SampleNode> getChildren(SampleNode node) {
+                return node.getChildren();
+            }
+
+            @Override
+            public SampleNode getParent(SampleNode node) {
+                return node.getParent();
+            }
+        });
+
+        assertThat(processor.foldToLong(rootSource, n -> 1L, Long::sum)).isEqualTo(rootSource.getSubtreeSize());
+    }
+
+    @Test
+    public void cycleDetected() throws Exception {
+        MapResolver resolver = new MapResolver().add("a", "b", "c").add("b", "d", "e").add("e", "f", "b");
+        TreeProcessor<String> cycleProcessor = new TreeProcessor<>(resolver);
+        cycleProcessor.setCycleDetection(true);
+        AroundChildrenNodeCallback<String> nop = new AroundChildrenNodeCallback<String>() {
+
+            public boolean processNode(String node) {
+                return true;
+            }
+
+            public void beforeChildren(String node) {
+            }
+
+            public void afterChildren(String node) {
+            }
+        };
+
+        for (long threshold : new long[] {0, SequentialThreshold.DEFAULT_THRESHOLD}) {
+            cycleProcessor.setSequentialThreshold(threshold);
+            assertCycle(() -> cycleProcessor.processNodes("a", nop));
+            assertCycle(() -> cycleProcessor.processNodesInParallel("a", nop));
+            assertCycle(() -> cycleProcessor.foldToLong("a", n -> 1L, Long::sum));
+            assertCycle(() -> cycleProcessor.fold("a", n -> n, String::concat));
+        }
+    }
+
+    @Test
+    public void sharedNodeIsNotCycle() throws Exception {
+        MapResolver resolver = new MapResolver().add("a", "b", "c").add("b", "d").add("c", "d").add("d", "e");
+        TreeProcessor<String> dagProcessor = new TreeProcessor<>(resolver);
+        dagProcessor.setCycleDetection(true);
+
+        assertThat(dagProcessor.foldToLong("a", n -> 1L, Long::sum)).isEqualTo(7L);
+    }
+
+    private static void assertCycle(Runnable action) {
+        try {
+            action.run();
+            fail("Cycle not detected");
+        } catch (CycleInTreeException e) {
+            assertThat(e.getNode()).isEqualTo("b");
+        }
+    }
+
+    /**
+     * Create children down to the specified depth, each node having the specified number of children
+     */
+    private static void createWideTree(SampleNode node, int depth, int width) {
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < width; i++) {
+            SampleNode child = new SampleNode(node.getValue() + "-" + i);
+            node.addChild(child);
+            createWideTree(child, depth - 1, width);
+        }
+    }
+
+    /**
+     * Assert that each processed node is processed before its children, and that its children subtrees are processed
+     * between its beforeChildren and afterChildren callbacks.
+     */
+    private void assertAroundChildrenOrder(SampleNode node) {
+        int processIndex = callback.actions.indexOf("process " + node.getValue());
+        int beforeIndex = callback.actions.indexOf("before children " + node.getValue());
+        int afterIndex = callback.actions.indexOf("after children " + node.getValue());
+        assertThat(processIndex).isGreaterThanOrEqualTo(0);
+        if (beforeIndex < 0) {
+            assertThat(afterIndex).isEqualTo(-1);
+            return;
+        }
+        assertThat(beforeIndex).isGreaterThan(processIndex);
+        assertThat(afterIndex).isGreaterThan(beforeIndex);
+        for (SampleNode child : node.getChildren()) {
+            assertThat(callback.actions.indexOf("process " + child.getValue())).isGreaterThan(beforeIndex);
+            int childAfterIndex = callback.actions.indexOf("after children " + child.getValue());
+            assertThat(childAfterIndex).isLessThan(afterIndex);
+            assertAroundChildrenOrder(child);
+        }
+    }
+
     private void processNodesFromRoot() {
         processor.processNodes(rootSource, callback);
     }
@@ -150,4 +393,11 @@ public class TreeProcessorTestCase {
         }
     }
 
+    static class SynchronizedTestCallback extends TestCallback {
+
+        SynchronizedTestCallback() {
+            actions = Collections.synchronizedList(new ArrayList<>());
+        }
+    }
+
 }
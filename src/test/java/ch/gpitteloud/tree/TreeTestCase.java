@@ -3,7 +3,9 @@ package ch.gpitteloud.tree;
 import org.junit.Test;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.junit.Assert.*;
@@ -111,6 +113,208 @@ public class TreeTestCase {
         tree.getRoot().getChildren().remove(0);
     }
 
+    @Test
+    public void detachFormerBranchOfCurrentNode() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+        root.getChildAt(0).createChildren("c00");
+        SampleNode c00 = root.getChildAt(0).getChildAt(0);
+        SampleNode c1 = root.getChildAt(1);
+        Tree<SampleNode> tree = new Tree<>(root);
+
+        tree.setCurrentNode(c00);
+        tree.setCurrentNode(c00);
+        try {
+            root.getChildren().remove(0);
+            fail("the branch contains the current node");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        tree.setCurrentNode(c1);
+        SampleNode c0 = root.getChildren().remove(0);
+        assertNull(c0.getParent());
+        try {
+            root.getChildren().clear();
+            fail("the current node cannot be removed");
+        } catch (IllegalStateException e) {
+            assertSame(root, c1.getParent());
+        }
+        tree.setCurrentNode(null);
+        root.getChildren().clear();
+        assertTrue(root.getChildren().isEmpty());
+    }
+
+    @Test
+    public void isAncestor() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+        root.getChildAt(0).createChildren("c00", "c01");
+        SampleNode c0 = root.getChildAt(0);
+        SampleNode c01 = c0.getChildAt(1);
+        SampleNode c1 = root.getChildAt(1);
+        Tree<SampleNode> tree = new Tree<>(root);
+
+        assertTrue(tree.isAncestor(root, c01));
+        assertTrue(tree.isAncestor(c0, c01));
+        assertFalse(tree.isAncestor(c01, c0));
+        assertFalse(tree.isAncestor(c1, c01));
+        assertFalse(tree.isAncestor(c0, c0));
+
+        // the index is rebuilt after a structural change
+        c0.getChildren().remove(c01);
+        c1.addChild(c01);
+        assertTrue(tree.isAncestor(c1, c01));
+        assertFalse(tree.isAncestor(c0, c01));
+    }
+
+    @Test
+    public void isAncestorFromConcurrentReaders() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1", "c2");
+        for (SampleNode child : root.getChildren()) {
+            child.createChildren("a", "b", "c");
+            for (SampleNode grandChild : child.getChildren()) {
+                grandChild.createChildren("x", "y");
+            }
+        }
+        Tree<SampleNode> tree = new Tree<>(root);
+        for (int i = 0; i < 3; i++) {
+            // each structural change makes the parallel readers build the index again
+            root.getChildAt(i).getChildAt(0).createChildren("z");
+            assertTrue(tree.dfsStream(true).allMatch(node -> {
+                for (SampleNode p = node.getParent(); p != null; p = p.getParent()) {
+                    if (!tree.isAncestor(p, node) || tree.isAncestor(node, p)) {
+                        return false;
+                    }
+                }
+                return tree.getSubtreeNodes(node).size() == node.getSubtreeSize();
+            }));
+        }
+    }
+
+    @Test
+    public void documentOrder() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+        root.getChildAt(0).createChildren("c00", "c01");
+        root.getChildAt(1).createChildren("c10");
+        Tree<SampleNode> tree = new Tree<>(root);
+
+        List<SampleNode> nodes = new ArrayList<>();
+        tree.forEach(nodes::add); // BFS
+        nodes.sort(tree.documentOrder());
+        List<String> values = new ArrayList<>();
+        nodes.forEach(n -> values.add(n.getValue()));
+        assertEquals(Arrays.asList("root", "c0", "c00", "c01", "c1", "c10"), values);
+        assertEquals(4, tree.getDocumentIndex(root.getChildAt(1)));
+
+        assertEquals(Arrays.asList(root.getChildAt(0), root.getChildAt(0).getChildAt(0),
+                root.getChildAt(0).getChildAt(1)), tree.getSubtreeNodes(root.getChildAt(0)));
+        assertEquals(1, tree.getSubtreeNodes(root.getChildAt(1).getChildAt(0)).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void documentIndexOfNodeNotInTheTreeFails() throws Exception {
+        Tree<SampleNode> tree = new Tree<>(SampleNode.createTree("root", "c0"));
+        Tree<SampleNode> other = new Tree<>(SampleNode.createTree("root", "c0"));
+        tree.getDocumentIndex(tree.getRoot());
+        other.getDocumentIndex(tree.getRoot().getChildAt(0));
+    }
+
+    @Test
+    public void ancestryIndexFollowsMovesBetweenTrees() throws Exception {
+        Tree<SampleNode> tree = new Tree<>(SampleNode.createTree("root", "c0", "c1"));
+        Tree<SampleNode> other = new Tree<>(SampleNode.createTree("other", "o0"));
+        SampleNode o0 = other.getRoot().getChildAt(0);
+        assertEquals(2, tree.getDocumentIndex(tree.getRoot().getChildAt(1)));
+        assertEquals(1, other.getDocumentIndex(o0));
+
+        other.getRoot().getChildren().remove(o0);
+        tree.getRoot().getChildAt(0).addChild(o0);
+        assertEquals(2, tree.getDocumentIndex(o0));
+        assertEquals(3, tree.getDocumentIndex(tree.getRoot().getChildAt(1)));
+        try {
+            other.getDocumentIndex(o0);
+            fail("o0 moved to the other tree");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, other.getDocumentIndex(other.getRoot()));
+        }
+    }
+
+    @Test
+    public void contains() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+        root.getChildAt(0).createChildren("c00");
+        Tree<SampleNode> tree = new Tree<>(root);
+        SampleNode c00 = root.getChildAt(0).getChildAt(0);
+        assertTrue(tree.contains(root));
+        assertTrue(tree.contains(c00));
+        assertFalse(tree.contains(null));
+
+        SampleNode c0 = root.getChildren().remove(0);
+        assertFalse(tree.contains(c00));
+        assertFalse(new Tree<>(SampleNode.createTree("other")).contains(c0));
+        root.getChildAt(0).addChild(c0);
+        assertTrue(tree.contains(c00));
+    }
+
+    @Test
+    public void nodeIndex() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+        root.getChildAt(0).createChildren("c00", "c01");
+        Tree<SampleNode> tree = new Tree<>(root);
+        NodeIndex<String, SampleNode> index = tree.createIndex(SampleNode::getValue);
+        assertEquals(5, index.size());
+        assertSame(root.getChildAt(0).getChildAt(1), index.get("c01"));
+
+        // detached subtree
+        SampleNode c0 = root.getChildren().remove(0);
+        assertEquals(2, index.size());
+        assertNull(index.get("c00"));
+
+        // attached subtree, and replaced node
+        SampleNode c1 = root.getChildAt(0);
+        c1.getChildren().add(c0);
+        assertSame(c0, index.get("c0"));
+        c0.getChildren().set(1, new SampleNode("c02"));
+        assertNull(index.get("c01"));
+        assertSame(c0.getChildAt(1), index.get("c02"));
+
+        c1.getChildren().clear();
+        assertEquals(2, index.size());
+        c1.getChildren().addAll(Arrays.asList(c0, new SampleNode("c10")));
+        assertEquals(6, index.size());
+
+        // nodes outside the tree are not indexed
+        c0.setChildren(Arrays.asList(new SampleNode("c03")));
+        assertTrue(index.containsKey("c03"));
+        new SampleNode("x").createChildren("x0");
+        assertFalse(index.containsKey("x0"));
+
+        assertTrue(tree.dropIndex(index));
+        c0.getChildren().clear();
+        assertTrue(index.containsKey("c03"));
+    }
+
+    @Test
+    public void failingKeyExtractorLeavesTheTreeConsistent() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0");
+        Tree<SampleNode> tree = new Tree<>(root);
+        NodeIndex<String, SampleNode> index = tree.createIndex(node -> {
+            if (node.getValue().equals("bad")) {
+                throw new IllegalStateException("no key");
+            }
+            return node.getValue();
+        });
+        SampleNode bad = new SampleNode("bad");
+        try {
+            root.getChildren().add(0, bad);
+            fail();
+        } catch (IllegalStateException e) {
+            // the list operation was complete
+            assertSame(root, bad.getParent());
+            assertSame(bad, root.getChildAt(0));
+            assertEquals(1, root.getChildAt(1).getIndex());
+        }
+        assertSame(root.getChildAt(1), index.get("c0"));
+    }
+
     @Test
     public void serializeTree() throws Exception {
         SampleNode root = new SampleNode("root");
@@ -137,6 +341,135 @@ public class TreeTestCase {
         }
     }
 
+    @Test
+    public void serializeDeepTree() throws Exception {
+        SampleNode root = new SampleNode("root");
+        SampleNode node = root;
+        for (int i = 0; i < 100000; i++) {
+            node.createChildren("s" + i, "n" + i);
+            node = node.getChildAt(1);
+        }
+        Tree<SampleNode> tree = new Tree<>(root);
+        tree.setCurrentNode(node);
+
+        Tree<SampleNode> stree = deserializeTree(serializeTree(tree));
+        SampleNode snode = stree.getCurrentNode();
+        assertEquals(node.getValue(), snode.getValue());
+        assertEquals(100000, snode.getDepth());
+        assertSame(stree.getRoot(), snode.getRootNode());
+        assertEquals(1, snode.getIndex());
+        assertEquals("s99999", snode.getParent().getChildAt(0).getValue());
+        assertEquals(200001, stree.getRoot().getSubtreeSize());
+        assertTrue(snode.isCurrent());
+        try {
+            stree.getRoot().getChildren().clear();
+            fail("the branch contains the current node");
+        } catch (IllegalStateException e) {
+            assertSame(stree.getRoot(), snode.getRootNode());
+        }
+
+        // the restored children lists are usable
+        NodeIndex<String, SampleNode> index = stree.createIndex(SampleNode::getValue);
+        snode.createChildren("c");
+        assertSame(snode.getChildAt(0), index.get("c"));
+        assertFalse(snode.getParent().getChildren().add(snode));
+    }
+
+    @Test
+    public void serializeNodeWritesItsComponent() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+        SampleNode c1 = root.getChildAt(1);
+        c1.createChildren("c10");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(c1);
+        }
+        SampleNode sc1;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            sc1 = (SampleNode) in.readObject();
+        }
+        assertEquals("c1", sc1.getValue());
+        assertEquals(1, sc1.getIndex());
+        assertEquals("root", sc1.getParent().getValue());
+        assertEquals("c0", sc1.getParent().getChildAt(0).getValue());
+        assertEquals("c10", sc1.getChildAt(0).getValue());
+        assertArrayEquals(new int[]{1, 0}, sc1.getChildAt(0).getPath());
+    }
+
+    @Test
+    public void serializeNodeLinkedToAnotherTree() throws Exception {
+        LinkedNode root2 = new LinkedNode("root2");
+        root2.addChild(new LinkedNode("c2"));
+        new Tree<>(root2);
+        LinkedNode root = new LinkedNode("root");
+        LinkedNode c1 = new LinkedNode("c1");
+        root.addChild(c1);
+        c1.link = root2;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(new Tree<>(root));
+        }
+        Tree<?> stree;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            stree = (Tree<?>) in.readObject();
+        }
+        LinkedNode slink = ((LinkedNode) stree.getRoot()).getChildAt(0).link;
+        assertEquals("root2", slink.value);
+        assertEquals(1, slink.getChildren().size());
+        assertEquals("c2", slink.getChildAt(0).value);
+        assertSame(slink, slink.getChildAt(0).getRootNode());
+    }
+
+    @Test
+    public void serializeAgainAfterReset() throws Exception {
+        SampleNode root = SampleNode.createTree("root", "c0", "c1");
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(root);
+            out.reset();
+            root.createChildren("c2");
+            out.writeObject(root);
+            // without reset, a new node of the component writes the current structure of the nodes already written
+            root.getChildren().remove(0);
+            SampleNode c3 = new SampleNode("c3");
+            root.addChild(c3);
+            out.writeObject(c3);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            SampleNode first = (SampleNode) in.readObject();
+            assertEquals(2, first.getChildren().size());
+
+            SampleNode second = (SampleNode) in.readObject();
+            assertNotSame(first, second);
+            assertEquals(3, second.getChildren().size());
+            assertEquals("c2", second.getChildAt(2).getValue());
+
+            SampleNode c3 = (SampleNode) in.readObject();
+            assertSame(second, c3.getParent());
+            assertEquals(3, second.getChildren().size());
+            assertEquals("c1", second.getChildAt(0).getValue());
+            assertEquals(0, second.getChildAt(0).getIndex());
+            assertEquals(2, c3.getIndex());
+            assertEquals(1, c3.getDepth());
+        }
+    }
+
+    static class LinkedNode extends TreeNode<LinkedNode> {
+
+        private static final long serialVersionUID = 1L;
+
+        final String value;
+        LinkedNode link;
+
+        LinkedNode(String value) {
+            super(LinkedNode.class);
+            this.value = value;
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private Tree<SampleNode> deserializeTree(byte[] bytes) throws IOException, ClassNotFoundException {
         ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
@@ -36,6 +36,23 @@ public class TreeTransformerTestCase {
         verifyNoMoreInteractions(sourceResolver, targetResolver, mapper);
     }
 
+    @Test
+    public void createFromChildResolver() throws Exception {
+        // 110 is shared by 10 and 11: it is mapped once below each of them
+        MapResolver graph = new MapResolver().add("1", "10", "11").add("10", "110").add("11", "110");
+        TreeTransformer<String, OtherNode> transformer = new TreeTransformer<>(graph::getChildren,
+                new TreeNode.Resolver<OtherNode>());
+
+        OtherNode result = transformer.create("1", sourceNode -> new OtherNode(Integer.parseInt(sourceNode)));
+
+        assertEquals(1, result.value);
+        assertEquals(2, result.getChildren().size());
+        assertEquals(10, result.getChildAt(0).value);
+        assertEquals(110, result.getChildAt(0).getChildAt(0).value);
+        assertEquals(11, result.getChildAt(1).value);
+        assertEquals(110, result.getChildAt(1).getChildAt(0).value);
+    }
+
     @Test
     public void createBasic() throws Exception {
         SampleNode rootSource = SampleNode.createTree("1", "10", "11");
@@ -469,6 +486,136 @@ public class TreeTransformerTestCase {
 
     }
 
+    @Test
+    public void createInParallelNullRootSource() throws Exception {
+        assertNull(transformer.createInParallel(null, sourceNode -> {
+            fail();
+            return null;
+        }));
+    }
+
+    @Test
+    public void createInParallel() throws Exception {
+        SampleNode rootSource = createWideTree(4, 6);
+        NodeMapper<SampleNode, OtherNode> mapper = sourceNode -> new OtherNode(Integer.parseInt(sourceNode.getValue()));
+        OtherNode expected = transformer.create(rootSource, mapper);
+
+        transformer.setSequentialThreshold(0);
+        OtherNode forked = transformer.createInParallel(rootSource, mapper);
+        transformer.setSequentialThreshold(50);
+        OtherNode partiallyForked = transformer.createInParallel(rootSource, mapper);
+
+        NodePrinter<OtherNode> printer = new NodePrinter<>(new TreeNode.Resolver<OtherNode>(), n -> Integer.toString(n.value));
+        assertEquals(1555, expected.getSubtreeSize());
+        assertEquals(printer.toString(expected), printer.toString(forked));
+        assertEquals(printer.toString(expected), printer.toString(partiallyForked));
+    }
+
+    @Test
+    public void createInParallelSkipChildren() throws Exception {
+        SampleNode rootSource = createWideTree(3, 4);
+        transformer.setSequentialThreshold(0);
+
+        OtherNode result = transformer.createInParallel(rootSource, sourceNode -> {
+            if (sourceNode.getValue().equals("12")) {
+                return null;
+            }
+            return new OtherNode(Integer.parseInt(sourceNode.getValue()));
+        });
+
+        assertEquals(1 + 3 * (1 + 4 + 16), result.getSubtreeSize());
+        assertEquals(3, result.getChildren().size());
+        assertEquals(11, result.getChildAt(0).value);
+        assertEquals(13, result.getChildAt(1).value);
+        assertEquals(14, result.getChildAt(2).value);
+    }
+
+    @Test
+    public void updateInParallelMultiNodes() throws Exception {
+        SampleNode rootSource = createWideTree(3, 3);
+        OtherNode rootTarget = new OtherNode(1);
+        transformer.setSequentialThreshold(0);
+
+        MultiNodesCallbackHandler<SampleNode, OtherNode> handler = (sourceNode, targetParentNode) -> {
+            int value = Integer.parseInt(sourceNode.getValue());
+            List<OtherNode> children = new ArrayList<>();
+            children.add(new OtherNode(value));
+            children.add(new OtherNode(-value));
+            targetParentNode.getChildren().addAll(children);
+            return children;
+        };
+
+        transformer.updateInParallel(rootSource, rootTarget, handler);
+
+        // each source node but the root is duplicated, under each duplicate of its parent
+        assertEquals(1 + 6 + 36 + 216, rootTarget.getSubtreeSize());
+        for (OtherNode node : new Tree<>(rootTarget)) {
+            List<OtherNode> children = node.getChildren();
+            for (int i = 0; i < children.size(); i += 2) {
+                int childValue = children.get(i).value;
+                assertEquals(-childValue, children.get(i + 1).value);
+                assertEquals(Math.abs(node.value) * 10 + i / 2 + 1, childValue);
+            }
+        }
+    }
+
+    @Test
+    public void updateInParallelFlattenLevel() throws Exception {
+        SampleNode rootSource = createWideTree(3, 3);
+        transformer.setSequentialThreshold(0);
+
+        // the nodes of the first level are skipped: their children are attached to the target root
+        NodeCallbackHandler<SampleNode, OtherNode> handler = (sourceNode, targetParentNode) -> {
+            if (sourceNode.getValue().length() == 2) {
+                return targetParentNode;
+            }
+            OtherNode node = new OtherNode(Integer.parseInt(sourceNode.getValue()));
+            targetParentNode.addChild(node);
+            return node;
+        };
+        OtherNode sequential = new OtherNode(1);
+        transformer.update(rootSource, sequential, handler);
+        OtherNode parallel = new OtherNode(1);
+        transformer.updateInParallel(rootSource, parallel, handler);
+
+        assertEquals(9, parallel.getChildren().size());
+        assertEquals(describe(sequential), describe(parallel));
+    }
+
+    private static String describe(OtherNode node) {
+        StringBuilder description = new StringBuilder().append(node.value);
+        if (!node.getChildren().isEmpty()) {
+            description.append('(');
+            for (OtherNode child : node.getChildren()) {
+                description.append(describe(child)).append(' ');
+            }
+            description.append(')');
+        }
+        return description.toString();
+    }
+
+    /**
+     * Create a source tree where each node has the specified number of children, down to the specified depth; the
+     * value of a child is 10 * value of parent + child number (starting at 1)
+     */
+    private static SampleNode createWideTree(int depth, int width) {
+        SampleNode root = new SampleNode("1");
+        List<SampleNode> level = new ArrayList<>();
+        level.add(root);
+        for (int d = 0; d < depth; d++) {
+            List<SampleNode> nextLevel = new ArrayList<>();
+            for (SampleNode node : level) {
+                for (int i = 1; i <= width; i++) {
+                    SampleNode child = new SampleNode(node.getValue() + i);
+                    node.addChild(child);
+                    nextLevel.add(child);
+                }
+            }
+            level = nextLevel;
+        }
+        return root;
+    }
+
     static class OtherNode extends TreeNode<OtherNode> {
 
         private static final long serialVersionUID = 1L;